@@ -10,6 +10,11 @@ package billiam.games;
  */
 public class Card implements java.io.Serializable, Comparable<Card> {
     
+    /**
+     * The serial version of the class before it had a codec, so cards
+     * persisted then can still be read.
+     */
+    private static final long serialVersionUID = -3537125647563035077L;
     /**
      * The rank of the card. 1 means ace, 2-10 are number cards, 11 is Jack, 12
      * is queen, and 13 is king.
@@ -21,6 +26,31 @@ public class Card implements java.io.Serializable, Comparable<Card> {
      */
     private final byte suit;
     
+    /**
+     * Writes cards for the {@link billiam.misc.Serializer} as a single byte:
+     * the rank in the high six bits, and the suit in the low two.
+     */
+    public static final billiam.misc.BinaryCodec<Card> CODEC = new
+        billiam.misc.BinaryCodec<Card>() {
+        
+        @Override
+        public void write (Card value, java.io.DataOutput out)
+                throws java.io.IOException {
+            out.writeByte(value.rank << 2 | value.suit);
+        }
+        
+        @Override
+        public Card read (java.io.DataInput in) throws java.io.IOException {
+            int b = in.readUnsignedByte();
+            try {
+                return new Card(b >> 2, b & 3);
+            } catch (IllegalArgumentException e) {
+                throw new java.io.StreamCorruptedException("Invalid card: "
+                        + b + ".");
+            }
+        }
+    };
+    
     /**
      * Creates a new card.
      * @param rank the rank of the card.
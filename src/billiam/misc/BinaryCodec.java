@@ -0,0 +1,103 @@
+/*
+ * Billiam Library is a collection of packages and classes
+ * created by Will Harris.
+ */
+package billiam.misc;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Writes values of one type in a compact binary form and reads them back,
+ * field by field and without reflection. Codecs are registered with
+ * {@link Serializer#register}, which then uses them in place of Java
+ * serialization for values of exactly that type.
+ * <p>
+ * A codec writes no type information and no field names; whatever it
+ * writes, its {@code read()} must read back in the same order. Changing
+ * what a codec writes therefore makes files written before unreadable,
+ * unless the codec writes a version of its own.
+ * @param <T> the type of value.
+ * @author willharris
+ */
+public interface BinaryCodec<T> {
+    
+    /**
+     * Writes a value.
+     * @param value the value to write, never null.
+     * @param out the output to write to.
+     * @throws IOException if writing fails.
+     */
+    void write (T value, DataOutput out) throws IOException;
+    
+    /**
+     * Reads a value written by {@code write()}.
+     * @param in the input to read from.
+     * @return the value read.
+     * @throws IOException if reading fails, or the data is malformed.
+     */
+    T read (DataInput in) throws IOException;
+    
+    /**
+     * Writes an int in one to five bytes, fewer for smaller non-negative
+     * values. Negative values always take five.
+     * @param out the output to write to.
+     * @param value the value to write.
+     * @throws IOException if writing fails.
+     */
+    static void writeVarint (DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+    
+    /**
+     * Reads an int written by {@code writeVarint()}.
+     * @param in the input to read from.
+     * @return the value read.
+     * @throws IOException if reading fails, or the varint is too long.
+     */
+    static int readVarint (DataInput in) throws IOException {
+        int value = 0;
+        
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        
+        throw new java.io.StreamCorruptedException("Varint is too long.");
+    }
+    
+    /**
+     * Writes a String as its UTF-8 length and bytes. Unlike
+     * {@code DataOutput.writeUTF()}, the String may be of any length.
+     * @param out the output to write to.
+     * @param text the text to write.
+     * @throws IOException if writing fails.
+     */
+    static void writeString (DataOutput out, String text) throws IOException {
+        byte[] bytes = text.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length);
+        out.write(bytes);
+    }
+    
+    /**
+     * Reads a String written by {@code writeString()}.
+     * @param in the input to read from.
+     * @return the text read.
+     * @throws IOException if reading fails.
+     */
+    static String readString (DataInput in) throws IOException {
+        int length = readVarint(in);
+        if (length < 0) throw new java.io.StreamCorruptedException(
+                "Negative string length.");
+        
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, java.nio.charset.StandardCharsets.UTF_8);
+    }
+}
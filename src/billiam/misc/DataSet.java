@@ -12,34 +12,80 @@ package billiam.misc;
 public class DataSet implements java.io.Serializable {
     
     /**
-     * The data of this instance.
+     * The serial version of the class as it was when it stored its data as a
+     * Double[], which it still is on Java serialization streams.
      */
-    private final Double[] data;
+    private static final long serialVersionUID = 4434393283629872771L;
+    /**
+     * The fields on Java serialization streams, which keep the Double[] the
+     * class used to store, so streams from before and after can be read by
+     * either.
+     */
+    private static final java.io.ObjectStreamField[] serialPersistentFields =
+            { new java.io.ObjectStreamField("data", Double[].class) };
     
     /**
-     * Initializes a DataSet using an array of doubles. The array is sorted
-     * before it is applied to the instance.
-     * @param data the data of this instance.
+     * The data of this instance, sorted. Not final only so
+     * {@code readObject()} can set it.
      */
-    public DataSet (double[] data) {
+    private double[] data;
+    
+    /**
+     * Writes data sets for the {@link Serializer}: the number of elements,
+     * then each element as eight bytes, in order.
+     */
+    public static final BinaryCodec<DataSet> CODEC = new
+        BinaryCodec<DataSet>() {
         
-        // Converts primitive data into wrapper data
-        java.util.ArrayList<Double> newData = new java.util.ArrayList<>();
-        for (int n = 0; n < data.length; ++n) newData.add(data[n]);
+        @Override
+        public void write (DataSet value, java.io.DataOutput out)
+                throws java.io.IOException {
+            BinaryCodec.writeVarint(out, value.data.length);
+            for (int n = 0; n < value.data.length; ++n)
+                out.writeDouble(value.data[n]);
+        }
         
-        // Rewrite Collection constructor.
-        this.data = newData.toArray(new Double[1]);
+        @Override
+        public DataSet read (java.io.DataInput in) throws java.io.IOException {
+            int length = BinaryCodec.readVarint(in);
+            if (length < 0) throw new java.io.StreamCorruptedException(
+                    "Negative data set length.");
+            
+            double[] data = new double[length];
+            for (int n = 0; n < length; ++n) data[n] = in.readDouble();
+            return new DataSet(data, false);
+        }
+    };
+    
+    /**
+     * Initializes a DataSet using an array of doubles. The array is copied
+     * and sorted before it is applied to the instance.
+     * @param data the data of this instance.
+     */
+    public DataSet (double[] data) {
+        this(data, true);
+    }
+    
+    /**
+     * Initializes a DataSet using an array of doubles, which is sorted before
+     * it is applied to the instance. Without a copy, the array itself is
+     * sorted and kept, which saves memory for large data, but the caller
+     * hands it over and must not change it afterwards.
+     * @param data the data of this instance.
+     * @param copy false to keep the array itself rather than a copy.
+     */
+    public DataSet (double[] data, boolean copy) {
+        this.data = copy ? data.clone() : data;
         java.util.Arrays.sort(this.data);
     }
     
     /**
-     * Initializes a DataSet using an array of doubles. The array is sorted
-     * before it is applied to the instance.
+     * Initializes a DataSet using an array of doubles. The array is unboxed
+     * and sorted before it is applied to the instance.
      * @param data the data of this instance.
      */
     public DataSet (Double[] data) {
-        this.data = data;
-        java.util.Arrays.sort(this.data);
+        this(unbox(java.util.Arrays.asList(data)), false);
     }
     
     /**
@@ -48,7 +94,59 @@ public class DataSet implements java.io.Serializable {
      * @param data 
      */
     public DataSet (java.util.Collection<Double> data) {
-        this(data.toArray(new Double[1]));
+        this(unbox(data), false);
+    }
+    
+    /**
+     * Converts boxed data into a new primitive array.
+     * @param data the data to convert.
+     * @return the data as primitives.
+     */
+    private static double[] unbox (java.util.Collection<Double> data) {
+        double[] values = new double[data.size()];
+        int n = 0;
+        for (Double value : data) values[n++] = value;
+        return values;
+    }
+    
+    /**
+     * Writes the data as the Double[] it always was on Java serialization
+     * streams.
+     * @param out the stream to write to.
+     * @throws java.io.IOException if writing fails.
+     */
+    private void writeObject (java.io.ObjectOutputStream out)
+            throws java.io.IOException {
+        Double[] boxed = new Double[data.length];
+        for (int n = 0; n < data.length; ++n) boxed[n] = data[n];
+        
+        java.io.ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("data", boxed);
+        out.writeFields();
+    }
+    
+    /**
+     * Reads the data from the Double[] on Java serialization streams.
+     * @param in the stream to read from.
+     * @throws java.io.IOException if reading fails.
+     * @throws ClassNotFoundException if a class of the stream is missing.
+     */
+    private void readObject (java.io.ObjectInputStream in)
+            throws java.io.IOException, ClassNotFoundException {
+        Double[] boxed = (Double[])in.readFields().get("data", null);
+        if (boxed == null) throw new java.io.InvalidObjectException(
+                "DataSet has no data.");
+        
+        // Streams from before held an element of null for empty data.
+        if (boxed.length == 1 && boxed[0] == null) boxed = new Double[0];
+        
+        try {
+            data = unbox(java.util.Arrays.asList(boxed));
+        } catch (NullPointerException e) {
+            throw new java.io.InvalidObjectException("DataSet has a null "
+                    + "element.");
+        }
+        java.util.Arrays.sort(data);
     }
     
     /**
@@ -131,10 +229,8 @@ public class DataSet implements java.io.Serializable {
                 // Right on the money!
                 return data[leftBound];
             case 2:
-                // Average of two values. Let's be recursive!
-                return new DataSet(
-                        new Double[] { data[leftBound], data[rightBound] }
-                ).mean();
+                // Average of two values.
+                return (data[leftBound] + data[rightBound]) / 2;
             case 3:
                 // It's right on the money, but on the right bound.
                 return data[rightBound];
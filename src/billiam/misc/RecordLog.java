@@ -0,0 +1,808 @@
+/*
+ * Billiam Library is a collection of packages and classes
+ * created by Will Harris.
+ */
+package billiam.misc;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An append-only log of serialized objects in a directory, which stores
+ * many objects, such as game histories or message archives, without a file
+ * for each. Every object appended gets the next record number, starting at
+ * 0, by which it is read back.
+ * <p>
+ * Objects are written by the {@link Serializer}, so registered codecs apply.
+ * Each record holds the length of the object's bytes, its record number and
+ * a CRC32C of both, followed by the bytes. The log is split into segment
+ * files, named after the number of their first record, and a new segment is
+ * started once the last one is full. A sparse index of each segment maps a
+ * record about every {@code INDEX_INTERVAL} bytes to its position, so a
+ * record is found by a binary search and a short scan rather than by
+ * reading the segment from the start. The indexes of full segments are kept
+ * in files beside them.
+ * <p>
+ * Records never change once written, but {@code deleteBefore()} drops whole
+ * segments of old records, and {@code compact()} rewrites full segments
+ * without the records no longer wanted. Record numbers stay as they were,
+ * and reading a dropped record fails.
+ * <p>
+ * Appends are buffered, and only durable after {@code flush()} or
+ * {@code close()}. When a log is opened, whatever follows the last whole
+ * record, such as a record torn by a crash, is cut off. A log may be shared
+ * by many threads, which take turns, but by only one process at a time.
+ * @author willharris
+ */
+public final class RecordLog implements java.io.Closeable {
+    
+    /**
+     * The default size of a segment, in bytes.
+     */
+    public static final int DEFAULT_SEGMENT_BYTES = 64 << 20;
+    /**
+     * The bytes between records in the sparse index, which bounds how far a
+     * read scans.
+     */
+    public static final int INDEX_INTERVAL = 4096;
+    
+    /**
+     * The bytes ahead of each record: its length, number and checksum.
+     */
+    private static final int HEADER = 16;
+    /**
+     * The bytes ahead of the entries of an index file: the size of the
+     * segment it describes, the number of its last record, and the number of
+     * entries.
+     */
+    private static final int INDEX_HEADER = 20;
+    /**
+     * The bytes of appends buffered before they are written.
+     */
+    private static final int WRITE_BUFFER = 1 << 16;
+    
+    private static final String LOG = ".log", INDEX = ".idx", TEMP = ".tmp";
+    
+    /**
+     * The directory of the log.
+     */
+    public final Path directory;
+    /**
+     * The size, in bytes, a segment may grow to before a new one is started.
+     * A record larger than this gets a segment of its own.
+     */
+    public final int segmentBytes;
+    
+    /**
+     * The segments by the number they are named after.
+     */
+    private final java.util.TreeMap<Long, Segment> segments = new
+        java.util.TreeMap<>();
+    /**
+     * The last segment, which appends go to.
+     */
+    private Segment active;
+    /**
+     * The bytes of the active segment that are in its file, rather than in
+     * the write buffer.
+     */
+    private long written;
+    
+    private final ByteBuffer writeBuffer = ByteBuffer.allocate(WRITE_BUFFER);
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER);
+    private final ByteBuffer readAhead = ByteBuffer.allocate(2
+            * INDEX_INTERVAL);
+    private final Scratch scratch = new Scratch();
+    private final java.util.zip.CRC32C crc = new java.util.zip.CRC32C();
+    /**
+     * Lets threads take turns. A lock rather than synchronized, so virtual
+     * threads are not pinned.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    private boolean open = true;
+    
+    private RecordLog (Path directory, int segmentBytes) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+    }
+    
+    /**
+     * Opens the log in a directory with segments of the default size,
+     * creating it if it does not exist.
+     * @param directory the directory of the log.
+     * @return the log.
+     * @throws IOException if the log could not be opened.
+     */
+    public static RecordLog open (Path directory) throws IOException {
+        return open(directory, DEFAULT_SEGMENT_BYTES);
+    }
+    
+    /**
+     * Opens the log in a directory, creating it if it does not exist.
+     * @param directory the directory of the log.
+     * @param segmentBytes the size a segment may grow to, in bytes.
+     * @return the log.
+     * @throws IOException if the log could not be opened.
+     */
+    public static RecordLog open (Path directory, int segmentBytes)
+            throws IOException {
+        if (segmentBytes < 1024 || segmentBytes > 1 << 30) throw new
+            IllegalArgumentException("Argument \"segmentBytes\" out of range."
+                    + " Expected 1024 to 2^30; got " + segmentBytes + ".");
+        
+        Files.createDirectories(directory);
+        RecordLog log = new RecordLog(directory, segmentBytes);
+        try {
+            log.load();
+        } catch (IOException | RuntimeException e) {
+            log.closeSegments();
+            throw e;
+        }
+        return log;
+    }
+    
+    /**
+     * Opens the segments in the directory, finishing or undoing whatever a
+     * crash interrupted.
+     * @throws IOException if a segment could not be opened.
+     */
+    private void load () throws IOException {
+        java.util.ArrayList<Long> bases = new java.util.ArrayList<>();
+        try (java.nio.file.DirectoryStream<Path> files = Files
+                .newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(TEMP)) Files.delete(file);
+                else if (name.matches("\\d{20}\\" + LOG)) bases.add(Long
+                        .parseLong(name.substring(0, 20)));
+            }
+        }
+        java.util.Collections.sort(bases);
+        
+        for (int n = 0; n < bases.size(); ++n) {
+            Segment segment = new Segment(bases.get(n));
+            segments.put(segment.base, segment);
+            segment.channel = FileChannel.open(file(segment.base, LOG),
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            
+            if (n < bases.size() - 1) readIndex(segment);
+            else {
+                // The last segment may end in a torn record, and has no
+                // index file until it is full.
+                scan(segment, true);
+                Files.deleteIfExists(file(segment.base, INDEX));
+            }
+        }
+        
+        if (segments.isEmpty()) startSegment(0);
+        else active = segments.lastEntry().getValue();
+        written = active.size;
+    }
+    
+    /**
+     * Appends an object to the log.
+     * @param obj the object to append, which may be null.
+     * @return the number of the record.
+     * @throws IOException if the object could not be serialized or written.
+     */
+    public long append (Serializable obj) throws IOException {
+        lock.lock();
+        try {
+            ensureOpen();
+            scratch.reset();
+            Serializer.write(obj, scratch);
+            
+            int length = scratch.size();
+            if (length > Integer.MAX_VALUE - HEADER) throw new IOException(
+                    "Record of " + length + " bytes is too large.");
+            
+            long number = active.last + 1;
+            if (active.size > 0 && (active.size + HEADER + length
+                    > segmentBytes || number - active.base
+                    > Integer.MAX_VALUE)) {
+                roll();
+            }
+            
+            long position = active.size;
+            header.clear();
+            header.putInt(length).putLong(number).putInt(checksum(number,
+                    scratch.buffer(), length));
+            buffer(header.array(), HEADER);
+            buffer(scratch.buffer(), length);
+            
+            active.size += HEADER + length;
+            active.last = number;
+            active.index(number, position);
+            
+            // Keeps only moderate scratch space between records.
+            if (scratch.buffer().length > 1 << 20) scratch.trim();
+            return number;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Reads a record.
+     * @param number the number of the record.
+     * @return the object of the record.
+     * @throws java.util.NoSuchElementException if there is no such record,
+     * because it was never appended or was dropped.
+     * @throws IOException if the record could not be read, or is corrupt.
+     * @throws ClassNotFoundException if the type of the object cannot be
+     * found.
+     */
+    public Serializable read (long number) throws IOException,
+            ClassNotFoundException {
+        lock.lock();
+        try {
+            ensureOpen();
+            java.util.Map.Entry<Long, Segment> entry = segments.floorEntry(
+                    number);
+            Segment segment = entry == null ? null : entry.getValue();
+            if (segment == null || number > segment.last) throw new
+                java.util.NoSuchElementException("No record " + number + ".");
+            if (segment == active) drain();
+            
+            long position = segment.find(number);
+            while (position < segment.size) {
+                // Reads the records ahead in one go rather than a header at a
+                // time, as the record is usually within an index interval.
+                int span = (int)Math.min(segment.size - position,
+                        readAhead.capacity());
+                readAhead.clear().limit(span);
+                readFully(segment.channel, readAhead, position);
+                
+                long offset = 0;
+                for (; offset + HEADER <= span; offset += HEADER + readAhead
+                        .getInt((int)offset)) {
+                    int at = (int)offset;
+                    int length = readAhead.getInt(at);
+                    long found = readAhead.getLong(at + 4);
+                    if (length < 0) throw new java.io.StreamCorruptedException(
+                            "Segment " + segment.base + " is corrupt.");
+                    if (found > number) throw new java.util
+                        .NoSuchElementException("No record " + number + ".");
+                    if (found < number) continue;
+                    
+                    int ahead = Math.min(length, span - at - HEADER);
+                    byte[] bytes = new byte[length];
+                    readAhead.get(at + HEADER, bytes, 0, ahead);
+                    if (ahead < length) readFully(segment.channel, ByteBuffer
+                            .wrap(bytes, ahead, length - ahead), position + at
+                            + HEADER + ahead);
+                    
+                    if (checksum(number, bytes, length) != readAhead.getInt(at
+                            + 12)) throw new java.io.StreamCorruptedException(
+                                    "Record " + number + " is corrupt.");
+                    return Serializer.read(new java.io.ByteArrayInputStream(
+                            bytes));
+                }
+                position += offset;
+            }
+            
+            throw new java.util.NoSuchElementException("No record " + number
+                    + ".");
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Gets the number of the first record that has not been dropped.
+     * @return the first record, or {@code getNext()} if there is none.
+     */
+    public long getFirst () {
+        lock.lock();
+        try {
+            for (Segment segment : segments.values())
+                if (segment.entries > 0) return segment.base
+                        + segment.numbers[0];
+            return active.last + 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Gets the number the next record appended will get.
+     * @return the next record number.
+     */
+    public long getNext () {
+        lock.lock();
+        try {
+            return active.last + 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Writes buffered appends and forces them to the disk.
+     * @throws IOException if writing fails.
+     */
+    public void flush () throws IOException {
+        lock.lock();
+        try {
+            ensureOpen();
+            drain();
+            active.channel.force(false);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Drops every full segment whose records all come before a record. The
+     * segment being appended to is kept.
+     * @param number the first record that must be kept.
+     * @return the number of segments dropped.
+     * @throws IOException if a segment could not be deleted.
+     */
+    public int deleteBefore (long number) throws IOException {
+        lock.lock();
+        try {
+            ensureOpen();
+            int dropped = 0;
+            java.util.Iterator<Segment> iterator = segments.values()
+                    .iterator();
+            
+            while (iterator.hasNext()) {
+                Segment segment = iterator.next();
+                if (segment == active || segment.last >= number) break;
+                
+                iterator.remove();
+                segment.channel.close();
+                Files.deleteIfExists(file(segment.base, INDEX));
+                Files.delete(file(segment.base, LOG));
+                ++dropped;
+            }
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Rewrites every full segment without the records that are no longer
+     * wanted, and drops segments left empty. The segment being appended to
+     * is kept as it is. Each segment is replaced in a single rename, so a
+     * crash leaves either the old segment or the new one. Appends and reads
+     * wait while a segment is rewritten.
+     * @param keep tests if the object of a record should be kept.
+     * @return the number of records dropped.
+     * @throws IOException if a segment could not be rewritten, or is
+     * corrupt.
+     * @throws ClassNotFoundException if the type of an object cannot be
+     * found.
+     */
+    public long compact (java.util.function.Predicate<? super Serializable>
+            keep) throws IOException, ClassNotFoundException {
+        long dropped = 0;
+        
+        lock.lock();
+        try {
+            ensureOpen();
+            for (Segment segment : segments.values()
+                    .toArray(new Segment[0])) {
+                if (segment != active) dropped += compact(segment, keep);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return dropped;
+    }
+    
+    /**
+     * Rewrites a full segment without the records that are no longer
+     * wanted.
+     * @param segment the segment.
+     * @param keep tests if the object of a record should be kept.
+     * @return the number of records dropped.
+     */
+    private long compact (Segment segment, java.util.function.Predicate<?
+            super Serializable> keep) throws IOException,
+            ClassNotFoundException {
+        Path temp = file(segment.base, LOG + TEMP);
+        Segment compacted = new Segment(segment.base);
+        long dropped = 0;
+        
+        try (java.io.DataInputStream in = new java.io.DataInputStream(new
+                java.io.BufferedInputStream(Files.newInputStream(file(
+                        segment.base, LOG)), WRITE_BUFFER));
+                java.io.OutputStream out = new java.io.BufferedOutputStream(
+                        Files.newOutputStream(temp), WRITE_BUFFER)) {
+            
+            byte[] bytes = new byte[1024];
+            for (long position = 0; position < segment.size; ) {
+                in.readFully(header.array());
+                int length = header.getInt(0);
+                long number = header.getLong(4);
+                
+                if (bytes.length < length) bytes = new byte[length];
+                in.readFully(bytes, 0, length);
+                if (checksum(number, bytes, length) != header.getInt(12))
+                    throw new java.io.StreamCorruptedException("Record "
+                            + number + " is corrupt.");
+                position += HEADER + length;
+                
+                if (!keep.test(Serializer.read(new java.io
+                        .ByteArrayInputStream(bytes, 0, length)))) {
+                    ++dropped;
+                    continue;
+                }
+                
+                out.write(header.array());
+                out.write(bytes, 0, length);
+                compacted.index(number, compacted.size);
+                compacted.size += HEADER + length;
+                compacted.last = number;
+            }
+        } catch (IOException | ClassNotFoundException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        
+        if (dropped == 0) {
+            Files.delete(temp);
+            return 0;
+        }
+        
+        segment.channel.close();
+        if (compacted.entries == 0) {
+            segments.remove(segment.base);
+            Files.delete(temp);
+            Files.deleteIfExists(file(segment.base, INDEX));
+            Files.delete(file(segment.base, LOG));
+            return dropped;
+        }
+        
+        // The old index describes a larger file, so it is ignored if a crash
+        // comes before the new one is written.
+        Files.move(temp, file(segment.base, LOG),
+                StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        compacted.channel = FileChannel.open(file(segment.base, LOG),
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segments.put(segment.base, compacted);
+        writeIndex(compacted);
+        return dropped;
+    }
+    
+    /**
+     * Writes buffered appends and closes the log. The index of the last
+     * segment is rebuilt the next time the log is opened.
+     * @throws IOException if writing fails.
+     */
+    @Override
+    public void close () throws IOException {
+        lock.lock();
+        try {
+            if (!open) return;
+            open = false;
+            
+            try {
+                drain();
+                active.channel.force(false);
+            } finally {
+                closeSegments();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Closes the files of every segment.
+     * @throws IOException if a file could not be closed.
+     */
+    private void closeSegments () throws IOException {
+        IOException failure = null;
+        for (Segment segment : segments.values()) {
+            if (segment.channel == null) continue;
+            try {
+                segment.channel.close();
+            } catch (IOException e) {
+                if (failure == null) failure = e;
+            }
+        }
+        if (failure != null) throw failure;
+    }
+    
+    /**
+     * Finishes the active segment and starts the next.
+     * @throws IOException if writing fails.
+     */
+    private void roll () throws IOException {
+        drain();
+        active.channel.force(false);
+        writeIndex(active);
+        startSegment(active.last + 1);
+        written = 0;
+    }
+    
+    /**
+     * Creates an empty segment, which becomes the active one.
+     * @param base the number of its first record.
+     * @throws IOException if its file could not be created.
+     */
+    private void startSegment (long base) throws IOException {
+        Segment segment = new Segment(base);
+        segment.channel = FileChannel.open(file(base, LOG),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segments.put(base, segment);
+        active = segment;
+    }
+    
+    /**
+     * Adds bytes to the write buffer, writing it out as it fills.
+     * @param bytes the bytes to add.
+     * @param length the number of bytes.
+     * @throws IOException if writing fails.
+     */
+    private void buffer (byte[] bytes, int length) throws IOException {
+        if (length > writeBuffer.remaining()) drain();
+        
+        if (length < writeBuffer.capacity()) writeBuffer.put(bytes, 0,
+                length);
+        else {
+            ByteBuffer direct = ByteBuffer.wrap(bytes, 0, length);
+            while (direct.hasRemaining()) written += active.channel.write(
+                    direct, written);
+        }
+    }
+    
+    /**
+     * Writes out the write buffer.
+     * @throws IOException if writing fails.
+     */
+    private void drain () throws IOException {
+        writeBuffer.flip();
+        try {
+            while (writeBuffer.hasRemaining()) written += active.channel
+                    .write(writeBuffer, written);
+        } finally {
+            writeBuffer.compact();
+        }
+    }
+    
+    /**
+     * Reads a segment's records from its file, rebuilding its index.
+     * @param segment the segment, whose index is empty.
+     * @param verify true to check every record against its checksum, and
+     * cut the file off at the first that fails.
+     * @throws IOException if reading fails.
+     */
+    private void scan (Segment segment, boolean verify) throws IOException {
+        long size = segment.channel.size();
+        long position = 0;
+        ByteBuffer bytes = ByteBuffer.allocate(1024);
+        
+        while (position + HEADER <= size) {
+            header.clear();
+            readFully(segment.channel, header, position);
+            int length = header.getInt(0);
+            long number = header.getLong(4);
+            
+            if (length < 0 || length > size - position - HEADER
+                    || number <= segment.last || number - segment.base
+                    > Integer.MAX_VALUE) break;
+            if (verify) {
+                if (bytes.capacity() < length) bytes = ByteBuffer.allocate(
+                        length);
+                bytes.clear().limit(length);
+                readFully(segment.channel, bytes, position + HEADER);
+                if (checksum(number, bytes.array(), length) != header.getInt(
+                        12)) break;
+            }
+            
+            segment.index(number, position);
+            segment.last = number;
+            position += HEADER + length;
+        }
+        
+        segment.size = position;
+        if (verify && position < size) segment.channel.truncate(position);
+    }
+    
+    /**
+     * Loads the index of a full segment from its file, or rebuilds it if the
+     * file is missing or out of date.
+     * @param segment the segment, whose index is empty.
+     * @throws IOException if reading fails.
+     */
+    private void readIndex (Segment segment) throws IOException {
+        Path file = file(segment.base, INDEX);
+        long size = segment.channel.size();
+        
+        if (Files.exists(file)) {
+            ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(file));
+            if (index.remaining() >= INDEX_HEADER && index.getLong(0) == size
+                    && index.remaining() == INDEX_HEADER + 8L * index.getInt(
+                            16)) {
+                index.position(INDEX_HEADER);
+                segment.size = size;
+                segment.last = index.getLong(8);
+                
+                int entries = index.getInt(16);
+                segment.numbers = new int[Math.max(entries, 16)];
+                segment.positions = new int[segment.numbers.length];
+                for (int n = 0; n < entries; ++n) {
+                    segment.numbers[n] = index.getInt();
+                    segment.positions[n] = index.getInt();
+                }
+                segment.entries = entries;
+                return;
+            }
+        }
+        
+        scan(segment, false);
+        writeIndex(segment);
+    }
+    
+    /**
+     * Writes the index of a full segment to its file, replacing any before.
+     * @param segment the segment.
+     * @throws IOException if writing fails.
+     */
+    private void writeIndex (Segment segment) throws IOException {
+        ByteBuffer index = ByteBuffer.allocate(INDEX_HEADER + 8
+                * segment.entries);
+        index.putLong(segment.size).putLong(segment.last).putInt(
+                segment.entries);
+        for (int n = 0; n < segment.entries; ++n)
+            index.putInt(segment.numbers[n]).putInt(segment.positions[n]);
+        
+        Path temp = file(segment.base, INDEX + TEMP);
+        Files.write(temp, index.array());
+        Files.move(temp, file(segment.base, INDEX),
+                StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+    
+    /**
+     * Computes the checksum of a record.
+     * @param number the number of the record.
+     * @param bytes the bytes of its object.
+     * @param length the number of bytes.
+     * @return the CRC32C of the number and the bytes.
+     */
+    private int checksum (long number, byte[] bytes, int length) {
+        crc.reset();
+        for (int shift = 56; shift >= 0; shift -= 8)
+            crc.update((int)(number >>> shift));
+        crc.update(bytes, 0, length);
+        return (int)crc.getValue();
+    }
+    
+    /**
+     * Gets the path of a file of a segment.
+     * @param base the number the segment is named after.
+     * @param suffix the suffix of the file.
+     * @return the path.
+     */
+    private Path file (long base, String suffix) {
+        return directory.resolve(String.format("%020d", base) + suffix);
+    }
+    
+    /**
+     * Reads until a buffer is full.
+     * @param channel the file to read.
+     * @param buffer the buffer to fill.
+     * @param position the position in the file to read from.
+     * @throws IOException if reading fails, or the file ends first.
+     */
+    private static void readFully (FileChannel channel, ByteBuffer buffer,
+            long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) throw new java.io.EOFException();
+            position += n;
+        }
+    }
+    
+    /**
+     * Throws an exception if the log is closed.
+     * @throws IOException if the log is closed.
+     */
+    private void ensureOpen () throws IOException {
+        if (!open) throw new IOException("Record log is closed.");
+    }
+    
+    /**
+     * A segment file and its sparse index.
+     */
+    private static final class Segment {
+        
+        /**
+         * The number the segment is named after, which no record in it is
+         * below.
+         */
+        final long base;
+        FileChannel channel;
+        /**
+         * The bytes of its records, including any still being buffered.
+         */
+        long size;
+        /**
+         * The number of its last record, or one below the base if it has
+         * none.
+         */
+        long last;
+        /**
+         * The numbers of the indexed records, relative to the base, and
+         * their positions. The first record is always indexed.
+         */
+        int[] numbers = new int[16], positions = new int[16];
+        int entries;
+        
+        Segment (long base) {
+            this.base = base;
+            this.last = base - 1;
+        }
+        
+        /**
+         * Indexes a record just added, if it is far enough from the last
+         * record indexed.
+         * @param number the number of the record.
+         * @param position the position of the record.
+         */
+        void index (long number, long position) {
+            if (entries > 0 && position - positions[entries - 1]
+                    < INDEX_INTERVAL) return;
+            
+            if (entries == numbers.length) {
+                numbers = java.util.Arrays.copyOf(numbers, entries * 2);
+                positions = java.util.Arrays.copyOf(positions, entries * 2);
+            }
+            numbers[entries] = (int)(number - base);
+            positions[entries] = (int)position;
+            ++entries;
+        }
+        
+        /**
+         * Finds where to start scanning for a record.
+         * @param number the number of the record.
+         * @return the position of the last indexed record at or before it.
+         */
+        long find (long number) {
+            int relative = (int)(number - base);
+            int low = 0, high = entries - 1, found = 0;
+            
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (numbers[middle] <= relative) {
+                    found = middle;
+                    low = middle + 1;
+                } else high = middle - 1;
+            }
+            return entries == 0 ? 0 : positions[found];
+        }
+    }
+    
+    /**
+     * A byte array stream whose array can be read without a copy.
+     */
+    private static final class Scratch extends java.io.ByteArrayOutputStream {
+        
+        Scratch () {
+            super(1024);
+        }
+        
+        byte[] buffer () {
+            return buf;
+        }
+        
+        void trim () {
+            buf = new byte[1024];
+        }
+    }
+}
@@ -11,39 +11,222 @@ import java.io.FileInputStream;
 import java.io.ObjectInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-       
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
 /**
  * Static class that stores methods to quickly serialize an object.
+ * <p>
+ * Objects of a type with a registered {@link BinaryCodec} are written by the
+ * codec, field by field and without reflection, which is several times
+ * faster and smaller than Java serialization. Their stream starts with a
+ * magic number and a varint tag naming the codec, so a reader knows how to
+ * decode it. Objects of any other type are written with Java serialization
+ * alone, exactly as this class wrote them before codecs, so files of such
+ * types stay readable by older versions of the library.
+ * <p>
+ * {@link DataSet}, {@link billiam.games.Card} and
+ * {@link billiam.sockettools.Message} have codecs built in.
+ * <p>
+ * Files are written and read through large buffers, and files of
+ * {@code MAP_THRESHOLD} bytes or more are read through a memory map rather
+ * than copied through a stream. The asynchronous variants run on a small
+ * pool of I/O threads, so a caller writing a large checkpoint need not wait
+ * on the disk. To store many objects in one place rather than a file each,
+ * see {@link RecordLog}; for large snapshots written compressed, checksummed
+ * and atomically, see {@link Snapshot}.
  * @author willharris
  */
 public class Serializer {
     
+    /**
+     * Starts every stream this class writes with a codec. Streams of Java
+     * serialization start with 0xACED instead.
+     */
+    private static final int MAGIC = 0xB15E;
+    /**
+     * The tag of an object written with Java serialization behind the magic
+     * number. Still read, but no longer written.
+     */
+    private static final int JAVA = 0;
+    /**
+     * The lowest tag applications may register. Tags below are reserved for
+     * the codecs of this library.
+     */
+    public static final int FIRST_USER_TAG = 64;
+    /**
+     * The bytes buffered between the codecs and the underlying stream. Most
+     * objects are small, and a large buffer would cost more to allocate than
+     * it saves.
+     */
+    private static final int BUFFER = 512;
+    /**
+     * The bytes buffered between the serializer and a file.
+     */
+    private static final int FILE_BUFFER = 1 << 16;
+    /**
+     * The size, in bytes, from which files are read through a memory map.
+     * Mapping a small file costs more than copying it.
+     */
+    public static final int MAP_THRESHOLD = 1 << 20;
+    /**
+     * The most threads of the pool that runs the asynchronous variants, and
+     * the most tasks waiting for one. Disks gain little from more writers
+     * at once, and every waiting task holds on to its object.
+     */
+    private static final int IO_THREADS = 2, IO_QUEUE = 64;
+    
+    /**
+     * The registered codecs by the exact type they write, and by tag.
+     */
+    private static final ConcurrentHashMap<Class<?>, Registration<?>> byType
+            = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Integer, Registration<?>> byTag =
+            new ConcurrentHashMap<>();
+    
+    static {
+        add(new Registration<>(DataSet.class, 1, DataSet.CODEC));
+        add(new Registration<>(billiam.games.Card.class, 2,
+                billiam.games.Card.CODEC));
+        add(new Registration<>(billiam.sockettools.Message.class, 3,
+                billiam.sockettools.Message.CODEC));
+    }
+    
+    /**
+     * Registers the codec of a type, which is then used for objects of
+     * exactly that type. Objects of its subclasses still use Java
+     * serialization, as the codec would lose their fields.
+     * <p>
+     * The tag is written ahead of every object the codec writes, and must
+     * name the same type wherever the stream is read, so readers register
+     * the same codecs under the same tags as writers.
+     * @param <T> the type the codec writes.
+     * @param type the type the codec writes.
+     * @param tag the tag of the type, from {@code FIRST_USER_TAG}.
+     * @param codec the codec.
+     * @throws IllegalArgumentException if the tag is out of range, or the
+     * tag or the type is already registered.
+     */
+    public static <T extends Serializable> void register (Class<T> type,
+            int tag, BinaryCodec<T> codec) {
+        if (tag < FIRST_USER_TAG) throw new IllegalArgumentException(
+                "Argument \"tag\" out of range. Expected at least "
+                        + FIRST_USER_TAG + "; got " + tag + ".");
+        
+        add(new Registration<>(type, tag, codec));
+    }
+    
+    /**
+     * Adds a codec to the registry.
+     * @param registration the codec and what it is registered under.
+     * @throws IllegalArgumentException if the tag or type is already
+     * registered.
+     */
+    private static synchronized void add (Registration<?> registration) {
+        if (byTag.containsKey(registration.tag)) throw new
+            IllegalArgumentException("Tag " + registration.tag + " is "
+                    + "already registered.");
+        if (byType.containsKey(registration.type)) throw new
+            IllegalArgumentException(registration.type.getName() + " is "
+                    + "already registered.");
+        
+        byType.put(registration.type, registration);
+        byTag.put(registration.tag, registration);
+    }
+    
+    /**
+     * Writes an object to a stream, with its codec if its type has one, or
+     * else with plain Java serialization. The stream is flushed but not
+     * closed.
+     * @param obj the object to write, which may be null.
+     * @param out the stream to write to.
+     * @throws IOException if writing fails.
+     */
+    public static void write (Serializable obj, OutputStream out)
+            throws IOException {
+        Registration<?> registration = obj == null ? null : byType.get(
+                obj.getClass());
+        if (registration == null) {
+            ObjectOutputStream objstream = new ObjectOutputStream(out);
+            objstream.writeObject(obj);
+            objstream.flush();
+            return;
+        }
+        
+        DataOutputStream data = new DataOutputStream(new
+            java.io.BufferedOutputStream(out, BUFFER));
+        data.writeShort(MAGIC);
+        BinaryCodec.writeVarint(data, registration.tag);
+        registration.write(obj, data);
+        data.flush();
+    }
+    
+    /**
+     * Reads an object written by {@code write()}, or by Java serialization
+     * alone. Unless the stream supports marks, it is buffered, so it may be
+     * read past the object. It is not closed.
+     * @param in the stream to read from.
+     * @return the object read.
+     * @throws IOException if reading fails, or the stream holds no object
+     * this class can read.
+     * @throws ClassNotFoundException if the type of an object written with
+     * Java serialization cannot be found.
+     */
+    public static Serializable read (InputStream in) throws IOException,
+            ClassNotFoundException {
+        InputStream buffered = in.markSupported() ? in : new
+            java.io.BufferedInputStream(in, BUFFER);
+        DataInputStream data = new DataInputStream(buffered);
+        
+        buffered.mark(2);
+        int magic = data.readUnsignedShort();
+        if (magic == (java.io.ObjectStreamConstants.STREAM_MAGIC & 0xFFFF)) {
+            buffered.reset();
+            return (Serializable)new ObjectInputStream(buffered).readObject();
+        }
+        if (magic != MAGIC) throw new java.io.StreamCorruptedException(
+                "Stream does not hold a serialized object.");
+        
+        int tag = BinaryCodec.readVarint(data);
+        if (tag == JAVA) return (Serializable)new ObjectInputStream(data)
+                .readObject();
+        
+        Registration<?> registration = byTag.get(tag);
+        if (registration == null) throw new java.io.StreamCorruptedException(
+                "No codec is registered for tag " + tag + ".");
+        return registration.codec.read(data);
+    }
+    
     /**
      * Serializes the provided object into a byte stream and writes the stream
-     * to a given file.
+     * to a given file, with its codec if its type has one.
      * @param obj the object to serialize.
      * @param path the path to the file where the byte stream will be stored.
      * @throws FileNotFoundException if the path provided leads to an invalid
      * or nonexistent file.
      * @throws IOException if an I/O error occurs when executing this method.
      */
-    public void Serialize (Serializable obj, String path) 
+    public static void Serialize (Serializable obj, String path) 
             throws FileNotFoundException, IOException {
         
-        // Declares streams 
-        FileOutputStream fstream = new FileOutputStream(path);
-        ObjectOutputStream objstream = new ObjectOutputStream(fstream); 
-
-        // Method for serialization of object 
-        objstream.writeObject(obj); 
-
-        objstream.close(); 
-        fstream.close(); 
+        // Declares streams, which are closed even if writing fails
+        try (OutputStream fstream = new java.io.BufferedOutputStream(new
+                FileOutputStream(path), FILE_BUFFER)) {
+            
+            // Method for serialization of object 
+            write(obj, fstream); 
+        }
     }
     
     /**
      * Deserializes an object from the provided path and returns the
-     * deserialized object.
+     * deserialized object. Files of {@code MAP_THRESHOLD} bytes or more are
+     * read through a memory map.
      * @param path the path to the serialized object.
      * @return the object after deserialization.
      * @throws FileNotFoundException if the path provided leads to an invalid
@@ -52,23 +235,210 @@ public class Serializer {
      * @throws ClassNotFoundException if the type of the deserialized object
      * cannot be found in the dependencies of the application.
      */
-    public Serializable Deserialize (String path) 
+    public static Serializable Deserialize (String path) 
             throws FileNotFoundException, IOException, ClassNotFoundException {
         
-        // Declares streams
-        FileInputStream fstream = new FileInputStream(path); 
-        ObjectInputStream objstream = new ObjectInputStream(fstream); 
-
-        // Writes the object to return value
-        Serializable value = (Serializable)objstream.readObject(); 
-
-        objstream.close(); 
-        fstream.close();
-
-        return value;
+        // Declares streams, which are closed even if reading fails
+        try (FileInputStream fstream = new FileInputStream(path)) {
+            java.nio.channels.FileChannel channel = fstream.getChannel();
+            long size = channel.size();
+            
+            // A mapping stays valid after the channel closes, until it is
+            // garbage collected.
+            if (size >= MAP_THRESHOLD && size <= Integer.MAX_VALUE)
+                return read(new MappedInputStream(channel.map(
+                        java.nio.channels.FileChannel.MapMode.READ_ONLY, 0,
+                        size)));
+            
+            return read(new java.io.BufferedInputStream(fstream,
+                    FILE_BUFFER));
+        }
+    }
+    
+    /**
+     * Serializes an object to a file on the pool of I/O threads. The object
+     * must not change until the returned future completes.
+     * @param obj the object to serialize.
+     * @param path the path to the file where the byte stream will be stored.
+     * @return a future completed once the file is written, or completed
+     * exceptionally with the exception {@code Serialize()} threw.
+     * @throws java.util.concurrent.RejectedExecutionException if too many
+     * tasks are already waiting for the pool.
+     */
+    public static CompletableFuture<Void> SerializeAsync (Serializable obj,
+            String path) {
+        return SerializeAsync(obj, path, IoPool.EXECUTOR);
+    }
+    
+    /**
+     * Serializes an object to a file on the given executor. The object must
+     * not change until the returned future completes.
+     * @param obj the object to serialize.
+     * @param path the path to the file where the byte stream will be stored.
+     * @param executor the executor to write on.
+     * @return a future completed once the file is written, or completed
+     * exceptionally with the exception {@code Serialize()} threw.
+     */
+    public static CompletableFuture<Void> SerializeAsync (Serializable obj,
+            String path, Executor executor) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        executor.execute(() -> {
+            try {
+                Serialize(obj, path);
+                future.complete(null);
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+    
+    /**
+     * Deserializes an object from a file on the pool of I/O threads.
+     * @param path the path to the serialized object.
+     * @return a future completed with the object, or completed exceptionally
+     * with the exception {@code Deserialize()} threw.
+     * @throws java.util.concurrent.RejectedExecutionException if too many
+     * tasks are already waiting for the pool.
+     */
+    public static CompletableFuture<Serializable> DeserializeAsync (
+            String path) {
+        return DeserializeAsync(path, IoPool.EXECUTOR);
+    }
+    
+    /**
+     * Deserializes an object from a file on the given executor.
+     * @param path the path to the serialized object.
+     * @param executor the executor to read on.
+     * @return a future completed with the object, or completed exceptionally
+     * with the exception {@code Deserialize()} threw.
+     */
+    public static CompletableFuture<Serializable> DeserializeAsync (
+            String path, Executor executor) {
+        CompletableFuture<Serializable> future = new CompletableFuture<>();
+        executor.execute(() -> {
+            try {
+                future.complete(Deserialize(path));
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
     }
     
     // Prevents creating a new instance of this class, as it only has static
     // fields.
     private Serializer() {}
+    
+    /**
+     * Holds the pool of I/O threads, so it is only created once an
+     * asynchronous variant is first used. Its threads are daemons, and end
+     * when idle for a while.
+     */
+    private static final class IoPool {
+        
+        static final java.util.concurrent.ThreadPoolExecutor EXECUTOR;
+        
+        static {
+            java.util.concurrent.atomic.AtomicInteger count = new
+                java.util.concurrent.atomic.AtomicInteger();
+            
+            EXECUTOR = new java.util.concurrent.ThreadPoolExecutor(IO_THREADS,
+                    IO_THREADS, 30, java.util.concurrent.TimeUnit.SECONDS, new
+                    java.util.concurrent.ArrayBlockingQueue<>(IO_QUEUE), task
+                    -> {
+                Thread thread = new Thread(task, "billiam-serializer-"
+                        + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            EXECUTOR.allowCoreThreadTimeOut(true);
+        }
+    }
+    
+    /**
+     * Reads a memory-mapped file as a stream, without copying it into a
+     * buffer first.
+     */
+    private static final class MappedInputStream extends InputStream {
+        
+        private final java.nio.ByteBuffer buffer;
+        
+        MappedInputStream (java.nio.ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+        
+        @Override
+        public int read () {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+        
+        @Override
+        public int read (byte[] b, int off, int len) {
+            java.util.Objects.checkFromIndexSize(off, len, b.length);
+            if (len == 0) return 0;
+            if (!buffer.hasRemaining()) return -1;
+            
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+        
+        @Override
+        public long skip (long n) {
+            int skipped = (int)Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+        
+        @Override
+        public int available () {
+            return buffer.remaining();
+        }
+        
+        @Override
+        public boolean markSupported () {
+            return true;
+        }
+        
+        @Override
+        public void mark (int readlimit) {
+            buffer.mark();
+        }
+        
+        @Override
+        public void reset () {
+            buffer.reset();
+        }
+    }
+    
+    /**
+     * A codec and what it is registered under.
+     * @param <T> the type the codec writes.
+     */
+    private static final class Registration<T extends Serializable> {
+        
+        final Class<T> type;
+        final int tag;
+        final BinaryCodec<T> codec;
+        
+        Registration (Class<T> type, int tag, BinaryCodec<T> codec) {
+            if (type == null || codec == null) throw new
+                NullPointerException("Type and codec must not be null.");
+            
+            this.type = type;
+            this.tag = tag;
+            this.codec = codec;
+        }
+        
+        /**
+         * Writes an object of the registered type.
+         * @param obj the object, whose class is exactly the type.
+         * @param out the output to write to.
+         * @throws IOException if writing fails.
+         */
+        void write (Object obj, java.io.DataOutput out) throws IOException {
+            codec.write(type.cast(obj), out);
+        }
+    }
 }
@@ -0,0 +1,578 @@
+/*
+ * Billiam Library is a collection of packages and classes
+ * created by Will Harris.
+ */
+package billiam.misc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.zip.Deflater;
+
+/**
+ * Static class that stores methods to write an object to a compressed,
+ * checksummed snapshot file, and read it back.
+ * <p>
+ * The object is written by the {@link Serializer}, and its bytes are cut
+ * into blocks of {@code BLOCK_SIZE} that are compressed independently, so
+ * they are compressed, and later checked and decompressed, on many cores at
+ * once. Each block is preceded by a header holding its sizes and the CRC32C
+ * of its compressed bytes, and is stored as it is if it does not shrink. A
+ * trailer holding the number of blocks and bytes ends the file, so a file
+ * cut short is noticed.
+ * <p>
+ * A snapshot is written to a temporary file beside the target, forced to
+ * the disk, then renamed over the target in one step, so a crash while
+ * writing leaves the previous snapshot as it was. The temporary file is
+ * created like any new file, under the process's umask, and takes the
+ * permissions of the snapshot it replaces where the file system has POSIX
+ * permissions, so the rename does not change who may read the snapshot.
+ * @author willharris
+ */
+public class Snapshot {
+    
+    /**
+     * Starts every snapshot file: "BSNP".
+     */
+    private static final int MAGIC = 0x42534E50;
+    private static final byte VERSION = 1;
+    /**
+     * The bytes of the file header: the magic number and version.
+     */
+    private static final int FILE_HEADER = 5;
+    /**
+     * The bytes of the header of a block, or of the trailer: a method byte,
+     * then the uncompressed and stored sizes and checksum of a block, or the
+     * number of blocks and of uncompressed bytes.
+     */
+    private static final int HEADER = 13;
+    private static final byte STORED = 0, DEFLATED = 1, END = -1;
+    
+    /**
+     * The uncompressed bytes of each block.
+     */
+    public static final int BLOCK_SIZE = 1 << 20;
+    /**
+     * The largest block a reader accepts, in uncompressed bytes.
+     */
+    private static final int MAX_BLOCK = 1 << 26;
+    /**
+     * The default deflate level. Snapshots favour speed over size.
+     */
+    public static final int DEFAULT_LEVEL = Deflater.BEST_SPEED;
+    /**
+     * The most blocks being compressed or decompressed ahead of the file,
+     * which bounds the memory a snapshot takes.
+     */
+    private static final int AHEAD = 2 * Runtime.getRuntime()
+            .availableProcessors() + 2;
+    
+    /**
+     * Writes an object to a snapshot file at the default level, compressing
+     * on the common pool.
+     * @param obj the object to write.
+     * @param path the path of the file, which is replaced.
+     * @throws IOException if the file could not be written.
+     */
+    public static void write (Serializable obj, Path path) throws IOException {
+        write(obj, path, DEFAULT_LEVEL,
+                java.util.concurrent.ForkJoinPool.commonPool());
+    }
+    
+    /**
+     * Writes an object to a snapshot file.
+     * @param obj the object to write.
+     * @param path the path of the file, which is replaced.
+     * @param level the deflate level from 1, the fastest, to 9, the
+     * smallest, or 0 to store blocks uncompressed.
+     * @param executor the executor to compress blocks on.
+     * @throws IOException if the file could not be written.
+     */
+    public static void write (Serializable obj, Path path, int level,
+            Executor executor) throws IOException {
+        if (level < 0 || level > 9) throw new IllegalArgumentException(
+                "Argument \"level\" out of range. Expected 0 to 9; got "
+                        + level + ".");
+        
+        Path absolute = path.toAbsolutePath();
+        Path temp = createTemp(absolute);
+        try {
+            // A replaced snapshot keeps its permissions.
+            if (Files.exists(absolute)) try {
+                Files.setPosixFilePermissions(temp,
+                        Files.getPosixFilePermissions(absolute));
+            } catch (UnsupportedOperationException e) {
+                // Not every file system has POSIX permissions.
+            }
+            
+            try (FileChannel channel = FileChannel.open(temp,
+                    StandardOpenOption.WRITE)) {
+                BlockOutputStream out = new BlockOutputStream(channel, level,
+                        executor);
+                Serializer.write(obj, out);
+                out.finish();
+                channel.force(true);
+            }
+            
+            Files.move(temp, absolute, StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        
+        // Makes the rename durable where directories can be forced.
+        try (FileChannel directory = FileChannel.open(absolute.getParent(),
+                StandardOpenOption.READ)) {
+            directory.force(true);
+        } catch (IOException e) {
+            // Not every file system lets a directory be opened.
+        }
+    }
+    
+    /**
+     * Creates an empty file with a unique name beside a target. Unlike
+     * {@code Files.createTempFile()}, which only lets its owner read the
+     * file, this creates it as any other file, under the process's umask.
+     * @param target the path of the target.
+     * @return the path of the created file.
+     * @throws IOException if the file could not be created.
+     */
+    private static Path createTemp (Path target) throws IOException {
+        java.util.concurrent.ThreadLocalRandom random =
+                java.util.concurrent.ThreadLocalRandom.current();
+        
+        while (true) {
+            Path temp = target.resolveSibling(target.getFileName() + "."
+                    + Long.toHexString(random.nextLong()) + ".tmp");
+            try {
+                return Files.createFile(temp);
+            } catch (java.nio.file.FileAlreadyExistsException e) {
+                // Another writer took the name, so another is tried.
+            }
+        }
+    }
+    
+    /**
+     * Reads the object of a snapshot file, decompressing on the common
+     * pool.
+     * @param path the path of the file.
+     * @return the object.
+     * @throws IOException if the file could not be read, or is corrupt.
+     * @throws ClassNotFoundException if the type of the object cannot be
+     * found.
+     */
+    public static Serializable read (Path path) throws IOException,
+            ClassNotFoundException {
+        return read(path, java.util.concurrent.ForkJoinPool.commonPool());
+    }
+    
+    /**
+     * Reads the object of a snapshot file. Blocks are checked and
+     * decompressed on the executor ahead of the object being read.
+     * @param path the path of the file.
+     * @param executor the executor to decompress blocks on.
+     * @return the object.
+     * @throws IOException if the file could not be read, or is corrupt.
+     * @throws ClassNotFoundException if the type of the object cannot be
+     * found.
+     */
+    public static Serializable read (Path path, Executor executor)
+            throws IOException, ClassNotFoundException {
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.READ);
+                BlockInputStream in = new BlockInputStream(channel, blocks(
+                        channel), executor)) {
+            return Serializer.read(in);
+        }
+    }
+    
+    /**
+     * Checks every block of a snapshot file against its checksum, and that
+     * it decompresses, without reading the object.
+     * @param path the path of the file.
+     * @throws StreamCorruptedException if the file is corrupt or incomplete.
+     * @throws IOException if the file could not be read.
+     */
+    public static void verify (Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.READ);
+                BlockInputStream in = new BlockInputStream(channel, blocks(
+                        channel), java.util.concurrent.ForkJoinPool
+                        .commonPool())) {
+            in.skipAll();
+        }
+    }
+    
+    /**
+     * Reads the headers of a snapshot file.
+     * @param channel the file.
+     * @return the positions of the headers of its blocks, in order.
+     * @throws IOException if the file could not be read, or is corrupt or
+     * incomplete.
+     */
+    private static long[] blocks (FileChannel channel) throws IOException {
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        
+        header.limit(FILE_HEADER);
+        if (size < FILE_HEADER + HEADER || !readFully(channel, header, 0)
+                || header.getInt(0) != MAGIC) throw new
+            StreamCorruptedException("Not a snapshot file.");
+        if (header.get(4) != VERSION) throw new StreamCorruptedException(
+                "Unsupported snapshot version " + header.get(4) + ".");
+        
+        long[] positions = new long[16];
+        int count = 0;
+        long raw = 0;
+        
+        for (long position = FILE_HEADER; ; ) {
+            header.clear();
+            if (!readFully(channel, header, position)) throw new
+                StreamCorruptedException("Snapshot is incomplete.");
+            
+            byte method = header.get(0);
+            if (method == END) {
+                if (header.getInt(1) != count || header.getLong(5) != raw
+                        || position + HEADER != size) throw new
+                    StreamCorruptedException("Snapshot trailer does not "
+                            + "match its blocks.");
+                return java.util.Arrays.copyOf(positions, count);
+            }
+            
+            int rawLength = header.getInt(1);
+            int storedLength = header.getInt(5);
+            if ((method != STORED && method != DEFLATED) || rawLength < 0
+                    || rawLength > MAX_BLOCK || storedLength < 0
+                    || storedLength > rawLength || (method == STORED
+                            && storedLength != rawLength)) throw new
+                StreamCorruptedException("Malformed block header at "
+                        + position + ".");
+            
+            if (count == positions.length) positions = java.util.Arrays
+                    .copyOf(positions, count * 2);
+            positions[count++] = position;
+            raw += rawLength;
+            position += HEADER + storedLength;
+        }
+    }
+    
+    /**
+     * Compresses a block.
+     * @param raw the uncompressed bytes.
+     * @param length the number of bytes.
+     * @param level the deflate level, or 0 to store.
+     * @return the block with its header, ready to be written.
+     */
+    private static ByteBuffer compress (byte[] raw, int length, int level) {
+        ByteBuffer block = ByteBuffer.allocate(HEADER + length);
+        byte method = STORED;
+        int stored = length;
+        
+        if (level > 0) {
+            Deflater deflater = new Deflater(level, true);
+            try {
+                deflater.setInput(raw, 0, length);
+                deflater.finish();
+                
+                // Output as long as the input means compression did not pay.
+                int deflated = deflater.deflate(block.array(), HEADER,
+                        length);
+                if (deflater.finished() && deflated < length) {
+                    method = DEFLATED;
+                    stored = deflated;
+                }
+            } finally {
+                deflater.end();
+            }
+        }
+        if (method == STORED) System.arraycopy(raw, 0, block.array(), HEADER,
+                length);
+        
+        java.util.zip.CRC32C crc = new java.util.zip.CRC32C();
+        crc.update(block.array(), HEADER, stored);
+        block.put(method).putInt(length).putInt(stored).putInt((int)crc
+                .getValue());
+        block.position(0).limit(HEADER + stored);
+        return block;
+    }
+    
+    /**
+     * Reads, checks and decompresses a block.
+     * @param channel the file.
+     * @param position the position of the header of the block.
+     * @return the uncompressed bytes.
+     * @throws IOException if the block could not be read, or is corrupt.
+     */
+    private static byte[] decompress (FileChannel channel, long position)
+            throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        readFully(channel, header, position);
+        byte method = header.get(0);
+        int rawLength = header.getInt(1);
+        int storedLength = header.getInt(5);
+        
+        byte[] stored = new byte[storedLength];
+        if (!readFully(channel, ByteBuffer.wrap(stored), position + HEADER))
+            throw new StreamCorruptedException("Snapshot is incomplete.");
+        
+        java.util.zip.CRC32C crc = new java.util.zip.CRC32C();
+        crc.update(stored);
+        if ((int)crc.getValue() != header.getInt(9)) throw new
+            StreamCorruptedException("Block at " + position + " is corrupt.");
+        if (method == STORED) return stored;
+        
+        byte[] raw = new byte[rawLength];
+        java.util.zip.Inflater inflater = new java.util.zip.Inflater(true);
+        try {
+            inflater.setInput(stored);
+            int produced = 0;
+            while (produced < rawLength && !inflater.finished()) {
+                int n = inflater.inflate(raw, produced, rawLength - produced);
+                if (n == 0 && inflater.needsInput()) break;
+                produced += n;
+            }
+            if (produced != rawLength) throw new StreamCorruptedException(
+                    "Block at " + position + " is truncated.");
+        } catch (java.util.zip.DataFormatException e) {
+            throw new StreamCorruptedException("Block at " + position
+                    + " is malformed: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        return raw;
+    }
+    
+    /**
+     * Reads until a buffer is full.
+     * @param channel the file to read.
+     * @param buffer the buffer to fill.
+     * @param position the position in the file to read from.
+     * @return false if the file ended first.
+     * @throws IOException if reading fails.
+     */
+    private static boolean readFully (FileChannel channel, ByteBuffer buffer,
+            long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) return false;
+            position += n;
+        }
+        return true;
+    }
+    
+    /**
+     * Waits for a block, rethrowing what it failed with.
+     * @param <T> the result of the block.
+     * @param future the block.
+     * @return its result.
+     * @throws IOException if the block failed with one.
+     */
+    private static <T> T join (CompletableFuture<T> future)
+            throws IOException {
+        try {
+            return future.join();
+        } catch (java.util.concurrent.CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException)cause;
+            if (cause instanceof RuntimeException) throw
+                (RuntimeException)cause;
+            if (cause instanceof Error) throw (Error)cause;
+            throw e;
+        }
+    }
+    
+    /**
+     * Cuts what is written into blocks, compresses them on an executor, and
+     * writes them to a file in order.
+     */
+    private static final class BlockOutputStream extends OutputStream {
+        
+        private final FileChannel channel;
+        private final int level;
+        private final Executor executor;
+        /**
+         * The blocks being compressed, in the order they are written.
+         */
+        private final java.util.ArrayDeque<CompletableFuture<ByteBuffer>>
+                pending = new java.util.ArrayDeque<>();
+        private byte[] block = new byte[BLOCK_SIZE];
+        private int count;
+        private int blocks;
+        private long raw;
+        
+        BlockOutputStream (FileChannel channel, int level, Executor executor)
+                throws IOException {
+            this.channel = channel;
+            this.level = level;
+            this.executor = executor;
+            
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER);
+            header.putInt(MAGIC).put(VERSION).flip();
+            while (header.hasRemaining()) channel.write(header);
+        }
+        
+        @Override
+        public void write (int b) throws IOException {
+            if (count == block.length) submit();
+            block[count++] = (byte)b;
+        }
+        
+        @Override
+        public void write (byte[] b, int off, int len) throws IOException {
+            java.util.Objects.checkFromIndexSize(off, len, b.length);
+            while (len > 0) {
+                if (count == block.length) submit();
+                int n = Math.min(len, block.length - count);
+                System.arraycopy(b, off, block, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+        
+        /**
+         * Hands the full block to the executor, writing out finished blocks
+         * while too many are pending.
+         */
+        private void submit () throws IOException {
+            byte[] full = block;
+            int length = count;
+            pending.add(CompletableFuture.supplyAsync(() -> compress(full,
+                    length, level), executor));
+            ++blocks;
+            raw += length;
+            
+            block = new byte[BLOCK_SIZE];
+            count = 0;
+            while (pending.size() >= AHEAD) writeNext();
+        }
+        
+        /**
+         * Waits for the oldest pending block and writes it.
+         */
+        private void writeNext () throws IOException {
+            ByteBuffer next = join(pending.poll());
+            while (next.hasRemaining()) channel.write(next);
+        }
+        
+        /**
+         * Writes the last block and the trailer.
+         * @throws IOException if writing fails.
+         */
+        void finish () throws IOException {
+            if (count > 0) submit();
+            while (!pending.isEmpty()) writeNext();
+            
+            ByteBuffer trailer = ByteBuffer.allocate(HEADER);
+            trailer.put(END).putInt(blocks).putLong(raw).flip();
+            while (trailer.hasRemaining()) channel.write(trailer);
+        }
+    }
+    
+    /**
+     * Reads the blocks of a file in order, while the blocks after are
+     * checked and decompressed on an executor.
+     */
+    private static final class BlockInputStream extends InputStream {
+        
+        private final FileChannel channel;
+        private final long[] blocks;
+        private final Executor executor;
+        /**
+         * The blocks being decompressed, in order.
+         */
+        private final java.util.ArrayDeque<CompletableFuture<byte[]>> ahead =
+                new java.util.ArrayDeque<>();
+        /**
+         * The index of the next block to hand to the executor.
+         */
+        private int next;
+        private byte[] current = new byte[0];
+        private int offset;
+        
+        BlockInputStream (FileChannel channel, long[] blocks,
+                Executor executor) {
+            this.channel = channel;
+            this.blocks = blocks;
+            this.executor = executor;
+            fill();
+        }
+        
+        /**
+         * Hands blocks to the executor until enough are ahead.
+         */
+        private void fill () {
+            while (ahead.size() < AHEAD && next < blocks.length) {
+                long position = blocks[next++];
+                ahead.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return decompress(channel, position);
+                    } catch (IOException e) {
+                        throw new java.util.concurrent.CompletionException(e);
+                    }
+                }, executor));
+            }
+        }
+        
+        /**
+         * Moves on to the next block once the current one is read.
+         * @return false at the end of the last block.
+         */
+        private boolean advance () throws IOException {
+            while (offset == current.length) {
+                if (ahead.isEmpty()) return false;
+                current = join(ahead.poll());
+                offset = 0;
+                fill();
+            }
+            return true;
+        }
+        
+        @Override
+        public int read () throws IOException {
+            return advance() ? current[offset++] & 0xFF : -1;
+        }
+        
+        @Override
+        public int read (byte[] b, int off, int len) throws IOException {
+            java.util.Objects.checkFromIndexSize(off, len, b.length);
+            if (len == 0) return 0;
+            if (!advance()) return -1;
+            
+            len = Math.min(len, current.length - offset);
+            System.arraycopy(current, offset, b, off, len);
+            offset += len;
+            return len;
+        }
+        
+        /**
+         * Checks and decompresses every remaining block.
+         * @throws IOException if a block is corrupt.
+         */
+        void skipAll () throws IOException {
+            offset = current.length;
+            while (advance()) offset = current.length;
+        }
+        
+        @Override
+        public void close () {
+            for (CompletableFuture<byte[]> future : ahead) future.cancel(false);
+            ahead.clear();
+        }
+    }
+    
+    // Prevents creating a new instance of this class, as it only has static
+    // methods.
+    private Snapshot () {}
+}
@@ -0,0 +1,598 @@
+/*
+ * Billiam Library is a collection of packages and classes
+ * created by Will Harris.
+ */
+package billiam.sockettools;
+
+import java.util.HashMap;
+
+/**
+ * A thread-safe cache bounded by the total weight of its entries, so session
+ * state kept on a connection has a predictable memory ceiling. By default
+ * every entry weighs 1, which bounds the number of entries.
+ * <p>
+ * Eviction follows the W-TinyLFU policy. New entries enter a small LRU
+ * window. When the window overflows, its least recently used entry competes
+ * with the least recently used entry of the main LRU region, and whichever
+ * has been used more often, according to a compact frequency sketch, stays.
+ * This keeps popular entries resident through scans of one-off keys that
+ * would flush a plain LRU cache.
+ * <p>
+ * Entries can also expire a fixed time after they were written, or after
+ * they were last read. Expired entries are removed when they are next looked
+ * up, and by {@code cleanUp()}.
+ * @param <K> the type of keys.
+ * @param <V> the type of values.
+ * @author willharris
+ */
+public class BoundedCache<K, V> extends Cache {
+    
+    private static final long serialVersionUID = 1L;
+    
+    /**
+     * The entries of this cache, by key.
+     */
+    private transient HashMap<K, Node<K, V>> map = new HashMap<>();
+    /**
+     * The admission window. Its head is the most recently used entry.
+     */
+    private transient Node<K, V> windowHead, windowTail;
+    /**
+     * The main region. Its head is the most recently used entry.
+     */
+    private transient Node<K, V> mainHead, mainTail;
+    /**
+     * Estimates how often each key has been used recently.
+     */
+    private transient FrequencySketch sketch;
+    
+    /**
+     * The largest total weight this cache holds.
+     */
+    public final long maximumWeight;
+    /**
+     * Determines the weight of each entry.
+     */
+    private final Weigher<? super K, ? super V> weigher;
+    /**
+     * Milliseconds after being written that an entry expires, or 0.
+     */
+    public final long expireAfterWrite;
+    /**
+     * Milliseconds after being last read or written that an entry expires,
+     * or 0.
+     */
+    public final long expireAfterAccess;
+    
+    private long weight;
+    private long windowWeight;
+    
+    // Statistics
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long expirations;
+    
+    /**
+     * Creates a cache holding at most the given number of entries, which
+     * never expire.
+     * @param maximumSize the most entries the cache holds.
+     */
+    public BoundedCache (long maximumSize) {
+        this(maximumSize, null, 0, 0);
+    }
+    
+    /**
+     * Creates a cache bounded by weight, with optional expiry.
+     * @param maximumWeight the largest total weight the cache holds.
+     * @param weigher determines the weight of each entry, or null to weigh
+     * every entry as 1.
+     * @param expireAfterWrite milliseconds after being written that an entry
+     * expires, or 0 to never expire entries this way.
+     * @param expireAfterAccess milliseconds after being last read or written
+     * that an entry expires, or 0 to never expire entries this way.
+     */
+    public BoundedCache (long maximumWeight,
+            Weigher<? super K, ? super V> weigher, long expireAfterWrite,
+            long expireAfterAccess) {
+        
+        if (maximumWeight < 1) throw new IllegalArgumentException(
+                "Argument \"maximumWeight\" must be positive; got "
+                + maximumWeight + ".");
+        if (expireAfterWrite < 0 || expireAfterAccess < 0) throw new
+            IllegalArgumentException("Expiry times must not be negative.");
+        
+        this.maximumWeight = maximumWeight;
+        this.weigher = weigher;
+        this.expireAfterWrite = expireAfterWrite;
+        this.expireAfterAccess = expireAfterAccess;
+        this.sketch = new FrequencySketch(maximumWeight);
+    }
+    
+    /**
+     * Gets the value mapped to a key.
+     * @param key the key to look up.
+     * @return the value, or null if the key is absent or expired.
+     */
+    public synchronized V get (K key) {
+        Node<K, V> node = map.get(key);
+        sketch.increment(key);
+        
+        long now = System.currentTimeMillis();
+        if (node != null && isExpired(node, now)) {
+            unlink(node);
+            map.remove(key);
+            ++expirations;
+            node = null;
+        }
+        
+        if (node == null) {
+            ++misses;
+            return null;
+        }
+        
+        ++hits;
+        node.accessed = now;
+        moveToHead(node);
+        return node.value;
+    }
+    
+    /**
+     * Maps a key to a value, replacing any previous value. The cache then
+     * evicts entries until it is back within its maximum weight, which may
+     * include the new entry itself.
+     * @param key the key.
+     * @param value the value.
+     * @return the previous value, or null if there was none.
+     */
+    public synchronized V put (K key, V value) {
+        if (key == null || value == null) throw new NullPointerException(
+                "Keys and values of a BoundedCache must not be null.");
+        
+        long now = System.currentTimeMillis();
+        int entryWeight = weigh(key, value);
+        Node<K, V> node = map.get(key);
+        sketch.increment(key);
+        
+        V previous = null;
+        if (node != null) {
+            previous = isExpired(node, now) ? null : node.value;
+            unlink(node);
+            node.value = value;
+            node.weight = entryWeight;
+        } else {
+            node = new Node<>(key, value, entryWeight);
+            map.put(key, node);
+        }
+        
+        node.written = now;
+        node.accessed = now;
+        linkWindow(node);
+        evict();
+        return previous;
+    }
+    
+    /**
+     * Removes the mapping of a key.
+     * @param key the key to remove.
+     * @return the removed value, or null if there was none.
+     */
+    public synchronized V remove (K key) {
+        Node<K, V> node = map.remove(key);
+        if (node == null) return null;
+        
+        unlink(node);
+        return isExpired(node, System.currentTimeMillis())
+                ? null : node.value;
+    }
+    
+    /**
+     * Checks if a key is mapped to a value that has not expired. This does
+     * not count as a use of the entry.
+     * @param key the key to check.
+     * @return true if the key is present.
+     */
+    public synchronized boolean containsKey (K key) {
+        Node<K, V> node = map.get(key);
+        return node != null && !isExpired(node, System.currentTimeMillis());
+    }
+    
+    /**
+     * Gets the number of entries, which may include expired entries that have
+     * not yet been removed.
+     * @return the number of entries.
+     */
+    public synchronized int size () {
+        return map.size();
+    }
+    
+    /**
+     * Gets the total weight of all entries.
+     * @return the current weight.
+     */
+    public synchronized long weight () {
+        return weight;
+    }
+    
+    /**
+     * Removes every expired entry.
+     */
+    public synchronized void cleanUp () {
+        if (expireAfterWrite == 0 && expireAfterAccess == 0) return;
+        
+        long now = System.currentTimeMillis();
+        java.util.Iterator<Node<K, V>> nodes = map.values().iterator();
+        while (nodes.hasNext()) {
+            Node<K, V> node = nodes.next();
+            if (!isExpired(node, now)) continue;
+            
+            unlink(node);
+            nodes.remove();
+            ++expirations;
+        }
+    }
+    
+    /**
+     * Removes every entry. Values that are Closeable are not closed.
+     */
+    public synchronized void clear () {
+        map.clear();
+        windowHead = windowTail = mainHead = mainTail = null;
+        weight = windowWeight = 0;
+    }
+    
+    /**
+     * Removes every entry, closing the values that are Closeable.
+     * @throws java.io.IOException if closing a value fails. The remaining
+     * values are still closed and the cache is still emptied.
+     */
+    @Override
+    public synchronized void close () throws java.io.IOException {
+        java.io.IOException failure = null;
+        
+        for (Node<K, V> node : map.values()) {
+            if (!(node.value instanceof java.io.Closeable)) continue;
+            
+            try {
+                ((java.io.Closeable)node.value).close();
+            } catch (java.io.IOException e) {
+                if (failure == null) failure = e;
+                else failure.addSuppressed(e);
+            }
+        }
+        
+        clear();
+        if (failure != null) throw failure;
+    }
+    
+    /**
+     * Gets the number of lookups that found a value.
+     * @return the hit count.
+     */
+    public synchronized long hits () {
+        return hits;
+    }
+    
+    /**
+     * Gets the number of lookups that found no value.
+     * @return the miss count.
+     */
+    public synchronized long misses () {
+        return misses;
+    }
+    
+    /**
+     * Gets the number of entries evicted to stay within the maximum weight.
+     * @return the eviction count.
+     */
+    public synchronized long evictions () {
+        return evictions;
+    }
+    
+    /**
+     * Gets the number of entries removed because they expired.
+     * @return the expiration count.
+     */
+    public synchronized long expirations () {
+        return expirations;
+    }
+    
+    @Override
+    public synchronized String toString () {
+        return "BoundedCache[size=" + map.size() + ", weight=" + weight + "/"
+                + maximumWeight + ", hits=" + hits + ", misses=" + misses
+                + ", evictions=" + evictions + "]";
+    }
+    
+    /**
+     * Weighs an entry.
+     * @param key the key of the entry.
+     * @param value the value of the entry.
+     * @return the weight of the entry.
+     */
+    private int weigh (K key, V value) {
+        if (weigher == null) return 1;
+        
+        int entryWeight = weigher.weigh(key, value);
+        if (entryWeight < 0) throw new IllegalArgumentException(
+                "Weigher returned negative weight " + entryWeight + ".");
+        return entryWeight;
+    }
+    
+    /**
+     * Checks if an entry has expired.
+     * @param node the entry.
+     * @param now the current time in milliseconds.
+     * @return true if the entry has expired.
+     */
+    private boolean isExpired (Node<K, V> node, long now) {
+        return (expireAfterWrite > 0 && now - node.written >= expireAfterWrite)
+                || (expireAfterAccess > 0
+                && now - node.accessed >= expireAfterAccess);
+    }
+    
+    /**
+     * Moves entries out of the window and evicts until the cache is within
+     * its maximum weight.
+     */
+    private void evict () {
+        long windowMax = Math.max(1, maximumWeight / 100);
+        
+        // Window overflow: its oldest entries try to get into main.
+        while (windowWeight > windowMax && windowTail != null) {
+            Node<K, V> candidate = windowTail;
+            unlink(candidate);
+            
+            if (admit(candidate)) linkMain(candidate);
+            else {
+                map.remove(candidate.key);
+                ++evictions;
+            }
+        }
+        
+        // Main may still be over after weights changed.
+        while (weight > maximumWeight && mainTail != null)
+            evictNode(mainTail);
+        while (weight > maximumWeight && windowTail != null)
+            evictNode(windowTail);
+    }
+    
+    /**
+     * Decides if a candidate leaving the window enters the main region,
+     * evicting main entries used less often than it to make room.
+     * @param candidate the candidate, already unlinked.
+     * @return true if the candidate should be linked into main.
+     */
+    private boolean admit (Node<K, V> candidate) {
+        if (candidate.weight > maximumWeight) return false;
+        
+        int frequency = sketch.frequency(candidate.key);
+        while (weight + candidate.weight > maximumWeight) {
+            if (mainTail == null) return false;
+            if (sketch.frequency(mainTail.key) >= frequency) return false;
+            evictNode(mainTail);
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Removes an entry to free its weight.
+     * @param node the entry to evict.
+     */
+    private void evictNode (Node<K, V> node) {
+        unlink(node);
+        map.remove(node.key);
+        ++evictions;
+    }
+    
+    /**
+     * Marks an entry as just used, keeping it in its region.
+     * @param node the entry.
+     */
+    private void moveToHead (Node<K, V> node) {
+        boolean window = node.inWindow;
+        unlink(node);
+        if (window) linkWindow(node);
+        else linkMain(node);
+    }
+    
+    private void linkWindow (Node<K, V> node) {
+        node.inWindow = true;
+        node.prev = null;
+        node.next = windowHead;
+        if (windowHead != null) windowHead.prev = node;
+        else windowTail = node;
+        windowHead = node;
+        
+        windowWeight += node.weight;
+        weight += node.weight;
+    }
+    
+    private void linkMain (Node<K, V> node) {
+        node.inWindow = false;
+        node.prev = null;
+        node.next = mainHead;
+        if (mainHead != null) mainHead.prev = node;
+        else mainTail = node;
+        mainHead = node;
+        
+        weight += node.weight;
+    }
+    
+    /**
+     * Unlinks an entry from whichever region holds it, and takes its weight
+     * off the totals.
+     * @param node the entry.
+     */
+    private void unlink (Node<K, V> node) {
+        if (node.prev != null) node.prev.next = node.next;
+        else if (node.inWindow) windowHead = node.next;
+        else mainHead = node.next;
+        
+        if (node.next != null) node.next.prev = node.prev;
+        else if (node.inWindow) windowTail = node.prev;
+        else mainTail = node.prev;
+        
+        node.prev = node.next = null;
+        if (node.inWindow) windowWeight -= node.weight;
+        weight -= node.weight;
+    }
+    
+    /**
+     * Writes the entries from least to most recently used, rather than as a
+     * linked structure that would recurse once per node.
+     * @param out the stream to write to.
+     * @throws java.io.IOException if writing fails.
+     */
+    private synchronized void writeObject (java.io.ObjectOutputStream out)
+            throws java.io.IOException {
+        out.defaultWriteObject();
+        out.writeInt(map.size());
+        
+        for (Node<K, V> node = mainTail; node != null; node = node.prev)
+            writeNode(out, node);
+        for (Node<K, V> node = windowTail; node != null; node = node.prev)
+            writeNode(out, node);
+    }
+    
+    private void writeNode (java.io.ObjectOutputStream out, Node<K, V> node)
+            throws java.io.IOException {
+        out.writeObject(node.key);
+        out.writeObject(node.value);
+        out.writeBoolean(node.inWindow);
+        out.writeLong(node.written);
+        out.writeLong(node.accessed);
+    }
+    
+    @SuppressWarnings("unchecked")
+    private void readObject (java.io.ObjectInputStream in)
+            throws java.io.IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        
+        map = new HashMap<>();
+        sketch = new FrequencySketch(maximumWeight);
+        weight = windowWeight = 0;
+        
+        int size = in.readInt();
+        for (int n = 0; n < size; ++n) {
+            K key = (K)in.readObject();
+            V value = (V)in.readObject();
+            Node<K, V> node = new Node<>(key, value, weigh(key, value));
+            boolean window = in.readBoolean();
+            node.written = in.readLong();
+            node.accessed = in.readLong();
+            
+            map.put(key, node);
+            if (window) linkWindow(node);
+            else linkMain(node);
+        }
+    }
+    
+    /**
+     * Determines the weight of cache entries.
+     * @param <K> the type of keys.
+     * @param <V> the type of values.
+     */
+    @FunctionalInterface
+    public static interface Weigher<K, V> extends java.io.Serializable {
+        /**
+         * Weighs an entry.
+         * @param key the key of the entry.
+         * @param value the value of the entry.
+         * @return the non-negative weight of the entry.
+         */
+        public int weigh (K key, V value);
+    }
+    
+    /**
+     * An entry, linked into the window or the main region.
+     */
+    private static final class Node<K, V> {
+        final K key;
+        V value;
+        int weight;
+        long written;
+        long accessed;
+        boolean inWindow;
+        Node<K, V> prev, next;
+        
+        Node (K key, V value, int weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+    
+    /**
+     * A count-min sketch of 4-bit counters, four per key, used to estimate
+     * how often keys were used. All counters are halved periodically so old
+     * popularity fades.
+     */
+    private static final class FrequencySketch {
+        private final long[] table;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+        
+        FrequencySketch (long maximum) {
+            // Sixteen counters per long, and about one long per entry. Caches
+            // bounded by a large weight are capped at 32 KB of counters.
+            long entries = Math.min(Math.max(maximum, 16), 4096);
+            int longs = (int)Long.highestOneBit((entries - 1) << 1);
+            this.table = new long[longs];
+            this.mask = longs - 1;
+            this.sampleSize = 10 * longs;
+        }
+        
+        private static int spread (Object key) {
+            int h = key.hashCode() * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+        
+        private int index (int hash, int row) {
+            long h = (hash + (long)row * 0x9E3779B97F4A7C15L)
+                    * 0xBF58476D1CE4E5B9L;
+            return (int)(h >>> 32) & mask;
+        }
+        
+        int frequency (Object key) {
+            int hash = spread(key);
+            int min = 15;
+            
+            for (int row = 0; row < 4; ++row) {
+                int shift = ((hash >>> (row << 3)) & 15) << 2;
+                int count = (int)((table[index(hash, row)] >>> shift) & 15);
+                min = Math.min(min, count);
+            }
+            
+            return min;
+        }
+        
+        void increment (Object key) {
+            int hash = spread(key);
+            boolean added = false;
+            
+            for (int row = 0; row < 4; ++row) {
+                int i = index(hash, row);
+                int shift = ((hash >>> (row << 3)) & 15) << 2;
+                
+                if (((table[i] >>> shift) & 15) != 15) {
+                    table[i] += 1L << shift;
+                    added = true;
+                }
+            }
+            
+            if (added && ++additions >= sampleSize) reset();
+        }
+        
+        /**
+         * Halves every counter.
+         */
+        private void reset () {
+            for (int i = 0; i < table.length; ++i)
+                table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+            additions >>>= 1;
+        }
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Billiam Library is a collection of packages and classes
+ * created by Will Harris.
+ */
+package billiam.sockettools;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A pool of direct ByteBuffers for socket I/O, so reads and writes do not
+ * allocate fresh buffers. Buffers come in power-of-two size classes. Each
+ * thread keeps a small stack of free buffers per class, backed by a shared
+ * queue per class, so most acquisitions and releases touch no shared state.
+ * Short-lived threads skip their own stack and use the shared queue only.
+ * Requests larger than the largest class are allocated on demand and never
+ * kept.
+ * <p>
+ * A sample of acquisitions is tracked for leaks: if a sampled
+ * {@link PooledBuffer} is garbage collected without being released, the
+ * place it was acquired is printed to {@code leakLog}.
+ * @author willharris
+ */
+public final class BufferPool {
+    
+    /**
+     * The pool used by sockettools unless told otherwise. Its classes range
+     * from 1 KB to 64 KB.
+     */
+    public static final BufferPool DEFAULT = new BufferPool(1024, 64 * 1024,
+            16, 1024);
+    
+    /**
+     * Tracks sampled acquisitions for leaks.
+     */
+    private static final java.lang.ref.Cleaner CLEANER =
+            java.lang.ref.Cleaner.create();
+    
+    /**
+     * The log of the smallest size class.
+     */
+    private final int minShift;
+    /**
+     * The number of size classes.
+     */
+    private final int classes;
+    /**
+     * The most free buffers the shared queue keeps per class.
+     */
+    private final int sharedCapacity;
+    
+    /**
+     * Free buffers shared between threads, one queue per class.
+     */
+    private final ConcurrentLinkedQueue<ByteBuffer>[] shared;
+    /**
+     * The number of buffers in each shared queue.
+     */
+    private final AtomicInteger[] sharedCounts;
+    /**
+     * Each thread's own free buffers.
+     */
+    private final ThreadLocal<LocalCache> local;
+    /**
+     * The empty cache of threads that skip the local tier.
+     */
+    private final LocalCache none;
+    
+    // Statistics
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder leaks = new LongAdder();
+    private final AtomicLong outstanding = new AtomicLong();
+    
+    /**
+     * One in this many acquisitions is tracked for leaks. Zero disables
+     * tracking and one tracks every acquisition.
+     */
+    public volatile int leakSampleRate = 128;
+    
+    /**
+     * The stream leaks are reported to.
+     */
+    public volatile java.io.PrintStream leakLog = System.err;
+    
+    /**
+     * Creates a new pool.
+     * @param minSize the smallest size class, rounded up to a power of two.
+     * @param maxSize the largest size class, rounded up to a power of two.
+     * @param localCapacity the most free buffers a thread keeps per class.
+     * @param sharedCapacity the most free buffers shared between threads per
+     * class.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool (int minSize, int maxSize, int localCapacity,
+            int sharedCapacity) {
+        
+        if (minSize < 1 || maxSize < minSize) throw new
+            IllegalArgumentException("Size classes must satisfy "
+                    + "1 <= minSize <= maxSize.");
+        
+        this.minShift = shift(minSize);
+        this.classes = shift(maxSize) - minShift + 1;
+        this.sharedCapacity = sharedCapacity;
+        
+        this.shared = new ConcurrentLinkedQueue[classes];
+        this.sharedCounts = new AtomicInteger[classes];
+        for (int n = 0; n < classes; ++n) {
+            shared[n] = new ConcurrentLinkedQueue<>();
+            sharedCounts[n] = new AtomicInteger();
+        }
+        
+        this.local = ThreadLocal.withInitial(() -> new LocalCache(classes,
+                localCapacity));
+        this.none = new LocalCache(classes, 0);
+    }
+    
+    /**
+     * Makes the calling thread acquire from and release to the shared
+     * queues only. Threads that live no longer than one connection should
+     * call this before using the pool, or the buffers they keep die with
+     * them instead of being reused.
+     */
+    void skipLocalCache () {
+        local.set(none);
+    }
+    
+    /**
+     * Gets the exponent of the smallest power of two at least the given
+     * size.
+     * @param size the size to round.
+     * @return the exponent of the rounded size.
+     */
+    private static int shift (int size) {
+        return 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+    }
+    
+    /**
+     * Acquires a cleared direct buffer of at least the given capacity. The
+     * buffer must be released once it is no longer used.
+     * @param capacity the minimum capacity needed.
+     * @return the acquired buffer.
+     */
+    public PooledBuffer acquire (int capacity) {
+        int sizeClass = Math.max(shift(capacity) - minShift, 0);
+        ByteBuffer buffer = null;
+        
+        if (sizeClass < classes) {
+            buffer = local.get().pop(sizeClass);
+            
+            if (buffer == null) {
+                buffer = shared[sizeClass].poll();
+                if (buffer != null) sharedCounts[sizeClass].decrementAndGet();
+            }
+        }
+        
+        if (buffer != null) hits.increment();
+        else {
+            misses.increment();
+            buffer = ByteBuffer.allocateDirect(sizeClass < classes
+                    ? 1 << (sizeClass + minShift) : capacity);
+        }
+        
+        buffer.clear();
+        outstanding.addAndGet(buffer.capacity());
+        
+        PooledBuffer lease = new PooledBuffer(this, buffer,
+                sizeClass < classes ? sizeClass : -1);
+        
+        // Samples the acquisition for leak tracking.
+        int rate = leakSampleRate;
+        if (rate > 0 && java.util.concurrent.ThreadLocalRandom.current()
+                .nextInt(rate) == 0) {
+            lease.track(CLEANER.register(lease, new LeakRecord(this,
+                    buffer.capacity(), lease.released)));
+        }
+        
+        return lease;
+    }
+    
+    /**
+     * Returns a lease's buffer to the pool. Called by PooledBuffer.
+     * @param buffer the released buffer.
+     * @param sizeClass the class of the buffer, or -1 if it is unpooled.
+     */
+    void release (ByteBuffer buffer, int sizeClass) {
+        outstanding.addAndGet(-buffer.capacity());
+        
+        if (sizeClass < 0) return;
+        if (local.get().push(sizeClass, buffer)) return;
+        
+        if (sharedCounts[sizeClass].incrementAndGet() <= sharedCapacity)
+            shared[sizeClass].add(buffer);
+        else sharedCounts[sizeClass].decrementAndGet();
+    }
+    
+    /**
+     * Gets the number of acquisitions served from a free buffer.
+     * @return the hit count.
+     */
+    public long hits () {
+        return hits.sum();
+    }
+    
+    /**
+     * Gets the number of acquisitions that had to allocate a new buffer.
+     * @return the miss count.
+     */
+    public long misses () {
+        return misses.sum();
+    }
+    
+    /**
+     * Gets the number of tracked buffers that were never released.
+     * @return the leak count.
+     */
+    public long leaks () {
+        return leaks.sum();
+    }
+    
+    /**
+     * Gets the total capacity of all buffers acquired and not yet released.
+     * @return the number of bytes outstanding.
+     */
+    public long bytesOutstanding () {
+        return outstanding.get();
+    }
+    
+    @Override
+    public String toString () {
+        return "BufferPool[hits=" + hits() + ", misses=" + misses()
+                + ", outstanding=" + bytesOutstanding() + " B, leaks="
+                + leaks() + "]";
+    }
+    
+    /**
+     * The free buffers of one thread.
+     */
+    private static final class LocalCache {
+        private final ByteBuffer[][] stacks;
+        private final int[] sizes;
+        
+        LocalCache (int classes, int capacity) {
+            this.stacks = new ByteBuffer[classes][capacity];
+            this.sizes = new int[classes];
+        }
+        
+        ByteBuffer pop (int sizeClass) {
+            if (sizes[sizeClass] == 0) return null;
+            
+            ByteBuffer buffer = stacks[sizeClass][--sizes[sizeClass]];
+            stacks[sizeClass][sizes[sizeClass]] = null;
+            return buffer;
+        }
+        
+        boolean push (int sizeClass, ByteBuffer buffer) {
+            if (sizes[sizeClass] == stacks[sizeClass].length) return false;
+            
+            stacks[sizeClass][sizes[sizeClass]++] = buffer;
+            return true;
+        }
+    }
+    
+    /**
+     * Runs when a tracked lease is released or collected, and reports a leak
+     * in the latter case. Must not refer to the lease itself.
+     */
+    private static final class LeakRecord implements Runnable {
+        private final BufferPool pool;
+        private final int capacity;
+        private final java.util.concurrent.atomic.AtomicBoolean released;
+        private final Throwable site = new Throwable("Buffer acquired here");
+        
+        LeakRecord (BufferPool pool, int capacity,
+                java.util.concurrent.atomic.AtomicBoolean released) {
+            this.pool = pool;
+            this.capacity = capacity;
+            this.released = released;
+        }
+        
+        @Override
+        public void run () {
+            if (released.get()) return;
+            
+            // The buffer itself is freed by the garbage collector.
+            pool.leaks.increment();
+            pool.outstanding.addAndGet(-capacity);
+            
+            java.io.PrintStream log = pool.leakLog;
+            log.println("[" + java.time.LocalTime.now() + ": LEAK] A pooled "
+                    + "buffer of " + capacity + " bytes was never released.");
+            site.printStackTrace(log);
+        }
+    }
+}
@@ -0,0 +1,533 @@
+/*
+ * Billiam Library is a collection of packages and classes
+ * created by Will Harris.
+ */
+package billiam.sockettools;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Connects to a {@link Server} and makes requests of it. Every request is
+ * given a correlation id that the server's reply carries back, so a
+ * connection does not wait for one reply before sending the next request:
+ * any number of requests may be in flight at once, and each is answered
+ * through its own {@link CompletableFuture}.
+ * <p>
+ * A client keeps a small pool of connections to its endpoint and sends each
+ * request on the one with the fewest requests in flight. Connections that
+ * drop are reopened on the next request. Every connection has a thread of
+ * its own reading replies, on which futures are completed; callbacks that
+ * block should therefore be run with one of the {@code async} methods of the
+ * future.
+ * <p>
+ * The server answers requests from {@link Server#onMessage} with
+ * {@code connection.reply()}. Pings are answered by the server itself.
+ * <p>
+ * A client on the same host as its server may connect through the server's
+ * Unix domain socket, by being created with the socket's path, or through a
+ * {@link SharedMemoryChannel} the server has created.
+ * @author willharris
+ */
+public class Client implements java.io.Closeable {
+    
+    /**
+     * The TCP address of the server, or null if the client connects through
+     * a Unix domain socket.
+     */
+    public final InetSocketAddress endpoint;
+    /**
+     * The socket address of the server, of either kind, or null if the
+     * client connects through shared memory.
+     */
+    public final java.net.SocketAddress address;
+    /**
+     * The file of the shared-memory channel to the server, or null.
+     */
+    private final java.nio.file.Path ring;
+    /**
+     * The way the shared-memory channel waits, or null.
+     */
+    private final SharedMemoryChannel.WaitStrategy ringWait;
+    
+    /**
+     * The number of connections kept open to the server.
+     */
+    public final int poolSize;
+    
+    /**
+     * The time, in milliseconds, after which an unanswered request fails
+     * with a {@link java.util.concurrent.TimeoutException}. 0 to wait
+     * forever.
+     */
+    public volatile long requestTimeout = 30000;
+    
+    /**
+     * The pooled connections. A slot is null until first connected.
+     */
+    private final AtomicReferenceArray<Link> pool;
+    
+    /**
+     * Serializes reopening dropped connections.
+     */
+    private final java.util.concurrent.locks.ReentrantLock reconnectLock = new
+        java.util.concurrent.locks.ReentrantLock();
+    
+    /**
+     * Expires requests that have waited too long. Shared by every client, so
+     * that processes running many clients, such as load generators, do not
+     * pay a thread for each.
+     */
+    private static final HashedWheelTimer TIMER = new HashedWheelTimer(100,
+            TimeUnit.MILLISECONDS, 512, "billiam-client-timer");
+    
+    /**
+     * The compression offered to the server, or null.
+     */
+    private volatile Compression offeredCompression;
+    
+    /**
+     * True if the client is closed, false if it isn't.
+     */
+    private volatile boolean isClosed = true;
+    
+    /**
+     * Creates a client of the server at the given address. Nothing is
+     * connected until {@code connect()} is called.
+     * @param host the host name or address of the server.
+     * @param port the port of the server.
+     * @param poolSize the number of connections to keep open.
+     */
+    public Client (String host, int port, int poolSize) {
+        this(new InetSocketAddress(host, port), poolSize);
+    }
+    
+    /**
+     * Creates a client of the server at the given address. Nothing is
+     * connected until {@code connect()} is called.
+     * @param endpoint the address of the server.
+     * @param poolSize the number of connections to keep open.
+     */
+    public Client (InetSocketAddress endpoint, int poolSize) {
+        this((java.net.SocketAddress)endpoint, poolSize);
+    }
+    
+    /**
+     * Creates a client of the server listening on a Unix domain socket on
+     * this host. Nothing is connected until {@code connect()} is called.
+     * @param path the path of the server's socket file.
+     * @param poolSize the number of connections to keep open.
+     * @see Server#start(java.nio.file.Path)
+     */
+    public Client (java.nio.file.Path path, int poolSize) {
+        this(java.net.UnixDomainSocketAddress.of(path), poolSize);
+    }
+    
+    /**
+     * Creates a client of the server that created a shared-memory channel
+     * on this host. The client has a single connection, which is not
+     * reopened once it closes. Nothing is connected until
+     * {@code connect()} is called.
+     * @param ring the path of the channel's file.
+     * @param waitStrategy the way the client's reading thread waits.
+     * @see Server#accept(SharedMemoryChannel)
+     */
+    public Client (java.nio.file.Path ring,
+            SharedMemoryChannel.WaitStrategy waitStrategy) {
+        this.address = null;
+        this.endpoint = null;
+        this.ring = ring;
+        this.ringWait = waitStrategy;
+        this.poolSize = 1;
+        this.pool = new AtomicReferenceArray<>(1);
+    }
+    
+    private Client (java.net.SocketAddress address, int poolSize) {
+        if (poolSize <= 0) throw new IllegalArgumentException(
+                "Argument \"poolSize\" must be positive.");
+        
+        this.ring = null;
+        this.ringWait = null;
+        this.address = address;
+        this.endpoint = address instanceof InetSocketAddress
+                ? (InetSocketAddress)address : null;
+        this.poolSize = poolSize;
+        this.pool = new AtomicReferenceArray<>(poolSize);
+    }
+    
+    /**
+     * Opens every connection of the pool.
+     * @throws IOException if a connection could not be opened.
+     */
+    public void connect () throws IOException {
+        if (!isClosed) throw new IllegalStateException(
+                "The client is already connected.");
+        
+        isClosed = false;
+        
+        try {
+            for (int n = 0; n < poolSize; ++n) pool.set(n, open(n));
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Offers the server compression of large message bodies on every
+     * connection. Must be called before the client connects. Bodies are
+     * only compressed on connections where the server accepts the offer.
+     * @param compression the compression settings, which must match those
+     * of the server, or null to not compress.
+     */
+    public void setCompression (Compression compression) {
+        if (!isClosed) throw new IllegalStateException(
+                "Compression must be set before the client connects.");
+        
+        this.offeredCompression = compression;
+    }
+    
+    /**
+     * Called on a connection's reading thread for every message from the
+     * server that does not answer a request, such as a broadcast.
+     * Disconnection requests close the connection after this method returns,
+     * and pings are answered automatically.
+     * @param message the received message.
+     */
+    protected void onMessage (Message message) {}
+    
+    /**
+     * Called on a connection's reading thread when the server starts sending
+     * a file. The file's content is written to the returned channel at its
+     * position, straight from the read buffers. The name comes from the
+     * server, and should not be trusted as a path.
+     * @param name the name the server gave the file.
+     * @param size the size of the file, in bytes.
+     * @return the channel to write the file to, or null to discard it.
+     * @throws IOException if the channel could not be opened, which closes
+     * the connection.
+     */
+    protected java.nio.channels.FileChannel onFileOffered (String name,
+            long size) throws IOException {
+        return null;
+    }
+    
+    /**
+     * Called on a connection's reading thread once a file has been received
+     * completely. Closes the channel by default; the channel is not closed
+     * otherwise. Files cut short by a disconnection are closed without this
+     * call.
+     * @param name the name the server gave the file.
+     * @param file the channel returned by {@code onFileOffered()}.
+     * @throws IOException if handling the file fails, which closes the
+     * connection.
+     */
+    protected void onFileReceived (String name,
+            java.nio.channels.FileChannel file) throws IOException {
+        file.close();
+    }
+    
+    /**
+     * Sends a request to the server. The returned future completes with the
+     * server's reply, which may be an ERR message, or exceptionally if the
+     * connection fails or the request times out.
+     * @param deliminator the type of message to send.
+     * @param message the message body.
+     * @return the future reply.
+     */
+    public CompletableFuture<Message> request (
+            Message.Deliminator deliminator, String message) {
+        CompletableFuture<Message> reply = new CompletableFuture<>();
+        
+        Link link;
+        try {
+            link = link();
+        } catch (IOException e) {
+            reply.completeExceptionally(e);
+            return reply;
+        }
+        
+        int id = link.nextId();
+        link.pending.put(id, reply);
+        
+        // The link marks itself closed before failing what is pending, so a
+        // request added after that is failed here instead.
+        if (link.isClosed()) {
+            if (link.pending.remove(id, reply))
+                reply.completeExceptionally(new
+                    java.nio.channels.ClosedChannelException());
+            return reply;
+        }
+        
+        long timeout = requestTimeout;
+        if (timeout > 0) {
+            HashedWheelTimer.Timeout expiry = TIMER.newTimeout(() -> {
+                if (link.pending.remove(id, reply))
+                    reply.completeExceptionally(new
+                        java.util.concurrent.TimeoutException("No reply "
+                                + "after " + timeout + " ms."));
+            }, timeout, TimeUnit.MILLISECONDS);
+            reply.whenComplete((result, error) -> expiry.cancel());
+        }
+        
+        try {
+            link.send(new Message(deliminator, message, id));
+        } catch (IOException e) {
+            if (link.pending.remove(id, reply))
+                reply.completeExceptionally(e);
+        }
+        
+        return reply;
+    }
+    
+    /**
+     * Measures the round trip time to the server.
+     * @return the future round trip time, in nanoseconds.
+     */
+    public CompletableFuture<Long> ping () {
+        long start = System.nanoTime();
+        return request(Message.Deliminator.PNG, Long.toString(start))
+                .thenApply(reply -> System.nanoTime() - start);
+    }
+    
+    /**
+     * Sends a message that expects no reply.
+     * @param deliminator the type of message to send.
+     * @param message the message body.
+     * @throws IOException if the message could not be written.
+     */
+    public void sendMessage (Message.Deliminator deliminator, String message)
+            throws IOException {
+        link().sendMessage(deliminator, message);
+    }
+    
+    /**
+     * Sends a file to the server, without copying it onto the heap.
+     * @param file the path of the file to send.
+     * @param name the name the server is told.
+     * @throws IOException if the file could not be opened or written.
+     * @see Connection#sendFile(java.nio.file.Path, String)
+     */
+    public void sendFile (java.nio.file.Path file, String name)
+            throws IOException {
+        link().sendFile(file, name);
+    }
+    
+    /**
+     * Gets the number of requests waiting for a reply.
+     * @return the requests in flight on every connection.
+     */
+    public int inFlight () {
+        int count = 0;
+        for (int n = 0; n < poolSize; ++n) {
+            Link link = pool.get(n);
+            if (link != null) count += link.pending.size();
+        }
+        return count;
+    }
+    
+    /**
+     * Picks the open connection with the fewest requests in flight,
+     * reopening any that have dropped.
+     * @return the connection to send on.
+     * @throws IOException if a dropped connection could not be reopened.
+     */
+    private Link link () throws IOException {
+        if (isClosed) throw new IllegalStateException(
+                "The client is not connected.");
+        
+        Link best = null;
+        for (int n = 0; n < poolSize; ++n) {
+            Link link = pool.get(n);
+            if (link == null || link.isClosed()) link = reopen(n);
+            
+            if (best == null || link.pending.size() < best.pending.size())
+                best = link;
+        }
+        
+        return best;
+    }
+    
+    /**
+     * Reopens a dropped connection of the pool, unless another thread
+     * already has.
+     * @param slot the index of the connection in the pool.
+     * @return the open connection.
+     * @throws IOException if the connection could not be opened.
+     */
+    private Link reopen (int slot) throws IOException {
+        reconnectLock.lock();
+        try {
+            Link link = pool.get(slot);
+            if (link != null && !link.isClosed()) return link;
+            
+            link = open(slot);
+            pool.set(slot, link);
+            return link;
+        } finally {
+            reconnectLock.unlock();
+        }
+    }
+    
+    /**
+     * Opens a connection to the server and starts reading its replies.
+     * @param slot the index of the connection in the pool.
+     * @return the new connection.
+     * @throws IOException if the connection could not be opened.
+     */
+    private Link open (int slot) throws IOException {
+        java.nio.channels.ByteChannel channel;
+        Object server;
+        
+        // Threads are named after the port, or the socket or ring file.
+        if (ring != null) {
+            channel = SharedMemoryChannel.open(ring, ringWait);
+            server = ring.getFileName();
+        } else {
+            SocketChannel socket = SocketChannel.open(address);
+            Connection.setNoDelay(socket);
+            channel = socket;
+            server = endpoint != null ? endpoint.getPort()
+                    : ((java.net.UnixDomainSocketAddress)address).getPath()
+                    .getFileName();
+        }
+        
+        Link link = new Link(channel);
+        Thread reader = new Thread(link::readReplies, "billiam-client-"
+                + server + "-" + slot);
+        reader.setDaemon(true);
+        reader.start();
+        
+        Compression settings = offeredCompression;
+        if (settings != null) link.sendMessage(Message.Deliminator.EXT,
+                settings.offer());
+        return link;
+    }
+    
+    /**
+     * Checks whether this client has been closed.
+     * @return true if this client is closed, false otherwise.
+     */
+    public boolean isClosed () {
+        return isClosed;
+    }
+    
+    /**
+     * Closes every connection. Requests still in flight fail with a
+     * {@link java.nio.channels.ClosedChannelException}.
+     */
+    @Override
+    public void close () {
+        if (isClosed) return;
+        isClosed = true;
+        
+        for (int n = 0; n < poolSize; ++n) {
+            Link link = pool.getAndSet(n, null);
+            if (link != null) link.closeNow();
+        }
+    }
+    
+    /**
+     * A pooled connection, which matches the replies it reads to the
+     * requests sent on it.
+     */
+    private final class Link extends Connection<Cache> {
+        
+        /**
+         * Requests waiting for their reply, by correlation id.
+         */
+        final ConcurrentHashMap<Integer, CompletableFuture<Message>> pending =
+                new ConcurrentHashMap<>();
+        
+        private final AtomicInteger ids = new AtomicInteger();
+        
+        Link (java.nio.channels.ByteChannel channel) {
+            super(channel, null);
+        }
+        
+        /**
+         * Gets an unused correlation id. Ids are positive, as 0 marks
+         * messages that are not requests, and wrap around long after the
+         * request holding one has timed out.
+         * @return the id for the next request.
+         */
+        int nextId () {
+            int id;
+            do {
+                id = ids.incrementAndGet() & Integer.MAX_VALUE;
+            } while (id == 0);
+            return id;
+        }
+        
+        /**
+         * Reads until the connection closes, then fails every request still
+         * waiting.
+         */
+        void readReplies () {
+            try {
+                while (!isClosed()) read();
+            } finally {
+                closeNow();
+                releaseBuffers();
+                
+                for (Integer id : pending.keySet()) {
+                    CompletableFuture<Message> reply = pending.remove(id);
+                    if (reply != null) reply.completeExceptionally(new
+                        java.nio.channels.ClosedChannelException());
+                }
+            }
+        }
+        
+        @Override
+        void received (Message message) throws IOException {
+            if (message.correlationId != 0) {
+                CompletableFuture<Message> reply = pending.remove(
+                        message.correlationId);
+                if (reply != null) reply.complete(message);
+                return;
+            }
+            
+            onMessage(message);
+            
+            switch (message.deliminator) {
+                case DSC:
+                    closeNow();
+                    break;
+                case PNG:
+                    send(message);
+                    break;
+                case YST:
+                    if (message.message.equals(Server.PROBE))
+                        sendMessage(Message.Deliminator.YST, "");
+                    break;
+                case EXT:
+                    // The server accepted the offer, and may now compress.
+                    Compression settings = offeredCompression;
+                    if (settings != null && settings.accepts(message.message)
+                            && compression == null)
+                        compression = settings.newSession();
+                    break;
+                default:
+                    break;
+            }
+        }
+        
+        @Override
+        java.nio.channels.FileChannel openFile (String name, long size)
+                throws IOException {
+            return onFileOffered(name, size);
+        }
+        
+        @Override
+        void fileReceived (String name, java.nio.channels.FileChannel file)
+                throws IOException {
+            onFileReceived(name, file);
+        }
+    }
+}
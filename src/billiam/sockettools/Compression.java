@@ -0,0 +1,275 @@
+/*
+ * Billiam Library is a collection of packages and classes
+ * created by Will Harris.
+ */
+package billiam.sockettools;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Settings of the deflate compression extension, which shrinks large message
+ * bodies on the wire. A {@link Client} offers the extension with an EXT
+ * message as soon as it connects, and a {@link Server} with compression set
+ * accepts it if both use the same dictionary. Until then, and on connections
+ * where it is not accepted, nothing is compressed.
+ * <p>
+ * Bodies shorter than the threshold are sent as they are, as are bodies that
+ * do not shrink. A compressed frame has the {@code COMPRESSED} opcode flag,
+ * and its body holds the length of the uncompressed body as a varint,
+ * followed by the deflated UTF-8 bytes. Every frame is compressed on its
+ * own, so frames need not be decompressed in the order they were compressed.
+ * <p>
+ * A dictionary holds text that bodies are expected to contain, such as the
+ * field names of a JSON schema, and makes even short bodies compress well.
+ * Both sides must use the same dictionary.
+ * @author willharris
+ */
+public final class Compression {
+    
+    /**
+     * The name of the extension in EXT messages.
+     */
+    private static final String DEFLATE = "deflate";
+    
+    /**
+     * The shortest body, in characters, that is compressed.
+     */
+    public final int threshold;
+    /**
+     * The deflate compression level, from 1 to 9.
+     */
+    public final int level;
+    /**
+     * The preset dictionary, or null.
+     */
+    private final byte[] dictionary;
+    /**
+     * The Adler-32 checksum of the dictionary, which identifies it during
+     * negotiation.
+     */
+    private final long dictionaryId;
+    
+    /**
+     * Creates compression settings without a dictionary.
+     * @param threshold the shortest body, in characters, to compress.
+     */
+    public Compression (int threshold) {
+        this(threshold, Deflater.DEFAULT_COMPRESSION, null);
+    }
+    
+    /**
+     * Creates compression settings.
+     * @param threshold the shortest body, in characters, to compress.
+     * @param level the deflate level from 1, the fastest, to 9, the
+     * smallest, or -1 for the default.
+     * @param dictionary a preset dictionary both sides share, or null.
+     */
+    public Compression (int threshold, int level, byte[] dictionary) {
+        if (threshold < 0) throw new IllegalArgumentException(
+                "Argument \"threshold\" must not be negative.");
+        if (level != Deflater.DEFAULT_COMPRESSION && (level < 1 || level > 9))
+            throw new IllegalArgumentException("Argument \"level\" out of "
+                    + "range. Expected 1 to 9 or -1; got " + level + ".");
+        
+        this.threshold = threshold;
+        this.level = level;
+        this.dictionary = dictionary == null ? null : dictionary.clone();
+        
+        if (dictionary == null) this.dictionaryId = 0;
+        else {
+            java.util.zip.Adler32 adler = new java.util.zip.Adler32();
+            adler.update(dictionary);
+            this.dictionaryId = adler.getValue();
+        }
+    }
+    
+    /**
+     * Gets the body of the EXT message that offers, or accepts, these
+     * settings.
+     * @return the offer.
+     */
+    String offer () {
+        if (dictionary == null) return DEFLATE;
+        return DEFLATE + " " + Long.toHexString(dictionaryId);
+    }
+    
+    /**
+     * Checks if an offer from the other side matches these settings.
+     * @param offer the body of the EXT message received.
+     * @return true if both sides can compress with each other.
+     */
+    boolean accepts (String offer) {
+        return offer().equals(offer);
+    }
+    
+    /**
+     * Creates the compression state of one connection.
+     * @return a new session.
+     */
+    Session newSession () {
+        return new Session();
+    }
+    
+    /**
+     * The deflater and inflater of one connection, reused for every frame.
+     * Frames may be compressed by any thread, one at a time, but are only
+     * decompressed by the thread reading the connection. The session may be
+     * ended by any thread, while frames are still being coded.
+     */
+    final class Session {
+        
+        private final Deflater deflater = new Deflater(level);
+        private final Inflater inflater = new Inflater();
+        /**
+         * Serializes compression. A lock rather than synchronized, so
+         * virtual threads are not pinned.
+         */
+        private final java.util.concurrent.locks.ReentrantLock lock = new
+            java.util.concurrent.locks.ReentrantLock();
+        /**
+         * Keeps decompression and {@code end()} apart. Only contended while
+         * the session ends.
+         */
+        private final java.util.concurrent.locks.ReentrantLock inflating =
+            new java.util.concurrent.locks.ReentrantLock();
+        /**
+         * True once the session has ended. Set holding both locks, so
+         * either lock is enough to read it.
+         */
+        private boolean ended;
+        /**
+         * The deflated bytes of the frame being compressed.
+         */
+        private byte[] scratch = new byte[1024];
+        
+        /**
+         * Gets the threshold of this session's settings.
+         * @return the shortest body to compress.
+         */
+        int threshold () {
+            return threshold;
+        }
+        
+        /**
+         * Encodes a message into a compressed frame.
+         * @param message the message to encode.
+         * @return the frame, ready to be written, or null if the body does
+         * not shrink and should be sent as it is.
+         */
+        ByteBuffer encode (Message message) {
+            byte[] raw = message.message.getBytes(StandardCharsets.UTF_8);
+            if (raw.length > FrameCodec.MAX_BODY) return null;
+            int deflated;
+            
+            lock.lock();
+            try {
+                if (ended) return null;
+                
+                deflater.reset();
+                if (dictionary != null) deflater.setDictionary(dictionary);
+                deflater.setInput(raw);
+                deflater.finish();
+                
+                // Output as long as the input means compression did not pay.
+                if (scratch.length < raw.length) scratch = new byte[
+                        raw.length];
+                deflated = deflater.deflate(scratch, 0, raw.length);
+                if (!deflater.finished()) return null;
+                
+                int length = FrameCodec.varintLength(raw.length) + deflated;
+                if (length > FrameCodec.MAX_BODY) return null;
+                
+                ByteBuffer frame = ByteBuffer.allocate(FrameCodec.MAX_HEADER
+                        + length);
+                FrameCodec.putHeader(frame, message, FrameCodec.COMPRESSED,
+                        length);
+                FrameCodec.putVarint(frame, raw.length);
+                frame.put(scratch, 0, deflated);
+                frame.flip();
+                
+                // Keeps only moderate scratch space between frames.
+                if (scratch.length > 1 << 16) scratch = new byte[1024];
+                return frame;
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        /**
+         * Decompresses the body of a compressed frame.
+         * @param in the buffer positioned at the body.
+         * @param length the length of the body.
+         * @return the decompressed text.
+         * @throws ProtocolException if the body is malformed.
+         */
+        String decode (ByteBuffer in, int length) throws ProtocolException {
+            int end = in.position() + length;
+            int size = FrameCodec.getVarint(in);
+            if (size < 0 || size > FrameCodec.MAX_BODY) throw new
+                ProtocolException("Compressed body of " + size + " bytes "
+                        + "exceeds the maximum of " + FrameCodec.MAX_BODY
+                        + ".");
+            
+            ByteBuffer input = in.duplicate();
+            input.limit(end);
+            in.position(end);
+            
+            byte[] raw = new byte[size];
+            int produced = 0;
+            
+            inflating.lock();
+            try {
+                if (ended) throw new ProtocolException(
+                        "Compression session has ended.");
+                
+                inflater.reset();
+                inflater.setInput(input);
+                
+                while (produced < size && !inflater.finished()) {
+                    int n = inflater.inflate(raw, produced, size - produced);
+                    produced += n;
+                    
+                    if (n == 0 && inflater.needsDictionary()) {
+                        if (dictionary == null) throw new ProtocolException(
+                                "Compressed body needs a dictionary.");
+                        inflater.setDictionary(dictionary);
+                    } else if (n == 0 && inflater.needsInput()) break;
+                }
+            } catch (DataFormatException e) {
+                throw new ProtocolException("Malformed compressed body: "
+                        + e.getMessage());
+            } finally {
+                inflating.unlock();
+            }
+            
+            if (produced != size) throw new ProtocolException(
+                    "Compressed body is truncated.");
+            return new String(raw, 0, size, StandardCharsets.UTF_8);
+        }
+        
+        /**
+         * Frees the native memory of this session, once no frame is being
+         * coded. Frames coded afterwards are sent uncompressed, or fail to
+         * decode.
+         */
+        void end () {
+            lock.lock();
+            inflating.lock();
+            try {
+                if (ended) return;
+                
+                ended = true;
+                deflater.end();
+                inflater.end();
+            } finally {
+                inflating.unlock();
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -4,11 +4,30 @@
  */
 package billiam.sockettools;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 /**
  * Stores the socket connection to the server, as well as the in and out
  * streams. Can also be run in a thread, which will cause the thread to
  * listen at this socket for a message. This class can be overridden to
  * implement custom data into connections.
+ * <p>
+ * Connections accepted by a started {@link Server} are backed by a
+ * non-blocking {@link SocketChannel} owned by the server's event loop. For
+ * those connections the {@code in} and {@code out} streams must not be used;
+ * messages arrive through {@link Server#onMessage} and are sent with
+ * {@link #sendMessage}. Connections served by their own thread use a blocking
+ * channel, and may read {@code in} directly.
+ * <p>
+ * Files are sent with {@link #sendFile}, which streams them from disk to the
+ * socket without copying them onto the heap. The receiving side chooses the
+ * {@link FileChannel} each file is written to, through
+ * {@link Server#onFileOffered} or {@link Client#onFileOffered}.
  * @param <C> the type of cache to use.
  * @version 1.0
  * @author willharris
@@ -18,6 +37,17 @@ public class Connection<C extends Cache> implements java.io.Closeable {
      * The connection's socket.
      */
     private final java.net.Socket socket;
+    /**
+     * The connection's channel, or null if this connection was created from a
+     * plain socket.
+     */
+    final SocketChannel channel;
+    /**
+     * The channel frames are read from and written to: the socket channel,
+     * another channel such as a {@link SharedMemoryChannel}, or null if this
+     * connection was created from a plain socket.
+     */
+    final java.nio.channels.ByteChannel transport;
     /**
      * The input stream that collects data from the socket.
      */
@@ -27,24 +57,895 @@ public class Connection<C extends Cache> implements java.io.Closeable {
      */
     public final java.io.OutputStream out;
     
-    public Connection (java.net.Socket socket, C cache) throws 
+    public Connection (java.net.Socket socket, C cache) throws
             java.io.IOException {
         this.socket = socket;
+        this.channel = null;
+        this.transport = null;
         this.in = socket.getInputStream();
         this.out = socket.getOutputStream();
         this.cache = cache;
     }
     
+    /**
+     * Creates a connection around a socket channel. The streams of this
+     * connection read and write the channel directly, so they may only be
+     * used while the channel is in blocking mode.
+     * @param channel the connected channel.
+     * @param cache the cache of data to use.
+     */
+    public Connection (SocketChannel channel, C cache) {
+        this.socket = null;
+        this.channel = channel;
+        this.transport = channel;
+        this.in = java.nio.channels.Channels.newInputStream(channel);
+        this.out = java.nio.channels.Channels.newOutputStream(channel);
+        this.cache = cache;
+    }
+    
+    /**
+     * Creates a connection around a blocking channel that is not a socket,
+     * such as a {@link SharedMemoryChannel}. Such a connection is always
+     * served by a thread of its own.
+     * @param transport the connected channel.
+     * @param cache the cache of data to use.
+     */
+    public Connection (java.nio.channels.ByteChannel transport, C cache) {
+        this.socket = null;
+        this.channel = transport instanceof SocketChannel
+                ? (SocketChannel)transport : null;
+        this.transport = transport;
+        this.in = java.nio.channels.Channels.newInputStream(transport);
+        this.out = java.nio.channels.Channels.newOutputStream(transport);
+        this.cache = cache;
+    }
+    
     /**
      * The cache of data to use.
      */
     public C cache;
     
+    /**
+     * The id the server registered this connection under, or 0.
+     */
+    volatile long id;
+    
+    // Event loop state. Only touched by the owning loop's thread.
+    /**
+     * The server this connection was accepted by.
+     */
+    Server server;
+    /**
+     * The loop this connection is registered with.
+     */
+    EventLoop loop;
+    /**
+     * The key of this connection's channel in the loop's selector.
+     */
+    SelectionKey key;
+    /**
+     * Bytes read from the channel that do not yet form a complete message,
+     * or null if there are none.
+     */
+    private PooledBuffer partial;
+    
+    /**
+     * The traffic counters of this connection.
+     */
+    final ConnectionMetrics metrics = new ConnectionMetrics();
+    
+    /**
+     * The compression negotiated on this connection, or null.
+     */
+    volatile Compression.Session compression;
+    
+    /**
+     * Limits the MSG frames and files this connection may send, or null.
+     */
+    TokenBucket admission;
+    /**
+     * True while reading is paused by admission control. Only touched by
+     * the loop's thread.
+     */
+    private boolean paused;
+    /**
+     * True once the frame at the head of the read buffer has been admitted,
+     * while the rest of it arrives. Only touched by the reading thread.
+     */
+    private boolean admitted;
+    /**
+     * The bytes of a refused frame still to be skipped. Only touched by the
+     * reading thread.
+     */
+    private int skipRemaining;
+    
+    // Incoming file state. Only touched by the thread reading the connection.
+    /**
+     * The channel the incoming file is written to, or null to discard it.
+     */
+    private FileChannel fileSink;
+    /**
+     * The name of the incoming file, or null if none is being received.
+     */
+    private String fileName;
+    /**
+     * The bytes of the incoming file still to arrive.
+     */
+    private long fileRemaining;
+    /**
+     * The bytes of the current raw frame still to arrive.
+     */
+    private int chunkRemaining;
+    
+    // Liveness state, maintained by the server's timer.
+    /**
+     * The time, in System.nanoTime(), this connection last received data.
+     */
+    volatile long lastRead = System.nanoTime();
+    /**
+     * The time, in System.nanoTime(), the server last pinged this connection.
+     */
+    volatile long lastPing = lastRead;
+    /**
+     * The body of the server's unanswered ping, or null.
+     */
+    volatile String pingToken;
+    /**
+     * True once the client was asked if it is still there, until it next
+     * sends anything.
+     */
+    volatile boolean probed;
+    /**
+     * The next liveness check of this connection, or null.
+     */
+    volatile HashedWheelTimer.Timeout liveness;
+    
+    /**
+     * The smallest buffer a connection keeps partial frames in.
+     */
+    private static final int READ_BUFFER = 1024;
+    
+    /**
+     * Messages waiting to be written to the channel.
+     */
+    private final OutboundQueue outbound = new OutboundQueue(
+            BufferPool.DEFAULT, DEFAULT_LOW_WATERMARK, DEFAULT_HIGH_WATERMARK);
+    
+    /**
+     * The default number of queued bytes above which a connection stops
+     * being writable.
+     */
+    public static final int DEFAULT_HIGH_WATERMARK = 64 * 1024;
+    /**
+     * The default number of queued bytes below which a connection becomes
+     * writable again.
+     */
+    public static final int DEFAULT_LOW_WATERMARK = 32 * 1024;
+    /**
+     * Serializes writes on blocking connections.
+     */
+    private final java.util.concurrent.locks.ReentrantLock writeLock = new
+        java.util.concurrent.locks.ReentrantLock();
+    /**
+     * Keeps files sent on blocking connections from interleaving.
+     */
+    private final java.util.concurrent.locks.ReentrantLock fileLock = new
+        java.util.concurrent.locks.ReentrantLock();
+    /**
+     * True while a flush of the outbound queue is pending on the loop.
+     */
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    /**
+     * True once this connection has been closed.
+     */
+    private final AtomicBoolean closed = new AtomicBoolean();
+    
+    /**
+     * Sends a message through this connection. For connections owned by an
+     * event loop the message is queued and written by the loop, so this
+     * method never blocks and may be called from any thread. Messages sent
+     * during one pass of the loop are coalesced into as few writes as
+     * possible.
+     * <p>
+     * The queue is not bounded. Senders that may outpace the client should
+     * check {@code isWritable()}, or react to
+     * {@link Server#onWritabilityChanged}.
+     * @param deliminator the type of message to send.
+     * @param message the message body.
+     * @throws IOException if the message could not be written.
+     */
+    public void sendMessage (Message.Deliminator deliminator, String message)
+            throws IOException {
+        send(new Message(deliminator, message));
+    }
+    
+    /**
+     * Answers a request sent by a {@link Client}. The reply carries the
+     * request's correlation id, which completes the client's future for it.
+     * @param request the request to answer.
+     * @param deliminator the type of the reply.
+     * @param message the reply body.
+     * @throws IOException if the reply could not be written.
+     */
+    public void reply (Message request, Message.Deliminator deliminator,
+            String message) throws IOException {
+        send(new Message(deliminator, message, request.correlationId));
+    }
+    
+    /**
+     * Sends an existing message through this connection, such as one received
+     * from another connection.
+     * @param message the message to send.
+     * @throws IOException if the message could not be written.
+     */
+    public void send (Message message) throws IOException {
+        
+        if (closed.get()) throw new java.nio.channels.ClosedChannelException();
+        
+        // Large bodies go out as compressed frames, if they shrink.
+        Compression.Session session = compression;
+        if (session != null && message.message.length() >= session
+                .threshold()) {
+            ByteBuffer frame = session.encode(message);
+            if (frame != null) {
+                PooledBuffer lease = PooledBuffer.wrap(frame);
+                try {
+                    sendFrame(lease);
+                } finally {
+                    lease.release();
+                }
+                return;
+            }
+        }
+        
+        countFrameOut(message.deliminator);
+        
+        // Blocking connections are written straight through. A lock is used
+        // rather than synchronized so virtual threads are not pinned.
+        if (loop == null) {
+            ByteBuffer frame = FrameCodec.encode(message);
+            
+            writeLock.lock();
+            try {
+                out.write(frame.array(), 0, frame.limit());
+                out.flush();
+            } finally {
+                writeLock.unlock();
+            }
+            countBytesOut(frame.limit());
+            return;
+        }
+        
+        if (outbound.add(message)) writabilityChanged(false);
+        scheduleFlush();
+    }
+    
+    /**
+     * Sends a frame that has already been encoded. The frame's content is
+     * shared rather than copied, so one frame can be sent to many
+     * connections; the outbound queue holds a share of the lease until the
+     * frame is written, and the lease's own position and limit are left
+     * untouched.
+     * @param frame the lease on the encoded frame, in read mode, which the
+     * caller still releases. Must not be modified afterwards.
+     * @throws IOException if the frame could not be written.
+     */
+    void sendFrame (PooledBuffer frame) throws IOException {
+        
+        if (closed.get()) throw new java.nio.channels.ClosedChannelException();
+        countFrameOut(FrameCodec.peekType(frame.buffer()));
+        
+        if (loop == null) {
+            ByteBuffer view = frame.buffer().duplicate();
+            
+            writeLock.lock();
+            try {
+                // Connections made from a plain socket only have streams.
+                if (transport == null) {
+                    byte[] bytes = new byte[view.remaining()];
+                    view.get(bytes);
+                    out.write(bytes);
+                    out.flush();
+                } else while (view.hasRemaining()) transport.write(view);
+            } finally {
+                writeLock.unlock();
+            }
+            countBytesOut(frame.buffer().remaining());
+            return;
+        }
+        
+        if (outbound.add(frame.share())) writabilityChanged(false);
+        scheduleFlush();
+    }
+    
+    /**
+     * Sends a file under its own name.
+     * @param file the path of the file to send.
+     * @throws IOException if the file could not be opened or written.
+     * @see #sendFile(java.nio.file.Path, String)
+     */
+    public void sendFile (java.nio.file.Path file) throws IOException {
+        sendFile(file, file.getFileName().toString());
+    }
+    
+    /**
+     * Sends a file. Its content is moved from disk to the socket by
+     * {@code FileChannel.transferTo()}, in raw frames of
+     * {@code OutboundQueue.FILE_CHUNK} bytes, so it never passes through the
+     * Java heap and control frames still get through while it is sent.
+     * Messages sent after the file arrive after it.
+     * <p>
+     * On an event loop the file is only queued, and this method returns at
+     * once; the queue stays unwritable until most of the file has gone out.
+     * Blocking connections send the whole file before returning. The file
+     * must not shrink while it is being sent.
+     * @param file the path of the file to send.
+     * @param name the name the other side is told, which need not be a path.
+     * @throws IOException if the file could not be opened or written.
+     */
+    public void sendFile (java.nio.file.Path file, String name)
+            throws IOException {
+        if (closed.get()) throw new java.nio.channels.ClosedChannelException();
+        
+        FileChannel source = FileChannel.open(file,
+                java.nio.file.StandardOpenOption.READ);
+        long size;
+        try {
+            size = source.size();
+        } catch (IOException e) {
+            source.close();
+            throw e;
+        }
+        
+        Message header = new Message(Message.Deliminator.BLB, size + " "
+                + name);
+        if (loop == null || size == 0) {
+            try (source) {
+                sendFile(header, source, size);
+            }
+            return;
+        }
+        
+        countFrameOut(Message.Deliminator.BLB);
+        if (outbound.add(header, source, size)) writabilityChanged(false);
+        scheduleFlush();
+    }
+    
+    /**
+     * Writes a file straight through, chunk by chunk, on the calling thread.
+     * Other messages may be written between chunks.
+     * @param header the BLB message announcing the file.
+     * @param source the file to send, from its start.
+     * @param size the number of bytes to send.
+     * @throws IOException if writing fails, or the file was truncated.
+     */
+    private void sendFile (Message header, FileChannel source, long size)
+            throws IOException {
+        java.nio.channels.WritableByteChannel target = transport != null
+                ? transport : java.nio.channels.Channels.newChannel(out);
+        ByteBuffer frame = ByteBuffer.allocate(FrameCodec.MAX_HEADER);
+        
+        fileLock.lock();
+        try {
+            send(header);
+            
+            long position = 0;
+            while (position < size) {
+                int length = (int)Math.min(OutboundQueue.FILE_CHUNK, size
+                        - position);
+                frame.clear();
+                FrameCodec.putRawHeader(frame, Message.Deliminator.BLB,
+                        length);
+                frame.flip();
+                
+                writeLock.lock();
+                try {
+                    while (frame.hasRemaining()) target.write(frame);
+                    
+                    long end = position + length;
+                    while (position < end) {
+                        long sent = source.transferTo(position, end
+                                - position, target);
+                        if (sent == 0 && source.size() <= position) throw new
+                            IOException("File was truncated while being "
+                                    + "sent.");
+                        position += sent;
+                    }
+                } finally {
+                    writeLock.unlock();
+                }
+                countBytesOut(frame.limit() + length);
+            }
+        } finally {
+            fileLock.unlock();
+        }
+    }
+    
+    /**
+     * Turns off Nagle's algorithm on a TCP channel, so small frames are sent
+     * at once. Unix domain sockets do not delay writes, and are left alone.
+     * @param channel the connected channel.
+     * @throws IOException if the option could not be set.
+     */
+    static void setNoDelay (SocketChannel channel) throws IOException {
+        if (channel.supportedOptions().contains(
+                java.net.StandardSocketOptions.TCP_NODELAY))
+            channel.setOption(java.net.StandardSocketOptions.TCP_NODELAY,
+                    true);
+    }
+    
+    /**
+     * Gets the id of this connection, which is unique within its server and
+     * finds it with {@link Server#getConnection}.
+     * @return the id, or 0 if the connection was not accepted by a server.
+     */
+    public long id () {
+        return id;
+    }
+    
+    /**
+     * Gets the traffic counters of this connection.
+     * @return the metrics of this connection.
+     */
+    public ConnectionMetrics metrics () {
+        return metrics;
+    }
+    
+    /**
+     * Counts a message sent on this connection and its server.
+     * @param deliminator the type of the message.
+     */
+    private void countFrameOut (Message.Deliminator deliminator) {
+        metrics.addFrameOut(deliminator);
+        if (server != null) server.metrics.addFrameOut(deliminator);
+    }
+    
+    /**
+     * Counts bytes written by this connection and its server.
+     * @param bytes the number of bytes written.
+     */
+    private void countBytesOut (long bytes) {
+        metrics.addBytesOut(bytes);
+        if (server != null) server.metrics.addBytesOut(bytes);
+    }
+    
+    /**
+     * Checks if this connection's outbound queue is below its high
+     * watermark. Once it is not, it only becomes writable again after the
+     * queue drains below the low watermark.
+     * @return true if more messages should be sent, false if the sender
+     * should hold back.
+     */
+    public boolean isWritable () {
+        return outbound.isWritable();
+    }
+    
+    /**
+     * Gets the number of bytes queued on this connection that have not yet
+     * been written to the socket.
+     * @return the number of pending outbound bytes.
+     */
+    public long pendingBytes () {
+        return outbound.pending();
+    }
+    
+    /**
+     * Sets the outbound watermarks of this connection. The connection stops
+     * being writable when more than {@code high} bytes are queued, and
+     * becomes writable again once no more than {@code low} are.
+     * @param low the low watermark, in bytes.
+     * @param high the high watermark, in bytes.
+     * @throws IllegalArgumentException if low is negative or above high.
+     */
+    public void setWriteWatermarks (long low, long high) {
+        outbound.setWatermarks(low, high);
+    }
+    
+    /**
+     * Asks the loop to flush the outbound queue once it has finished the
+     * current pass, unless a flush is already pending.
+     */
+    private void scheduleFlush () {
+        if (flushScheduled.compareAndSet(false, true)) loop.executeLater(() -> {
+            flushScheduled.set(false);
+            flush();
+        });
+    }
+    
+    /**
+     * Reports a change of writability to the server on the loop thread.
+     * @param writable the new writability.
+     */
+    private void writabilityChanged (boolean writable) {
+        loop.execute(() -> {
+            if (!closed.get()) server.onWritabilityChanged(this, writable);
+        });
+    }
+    
+    /**
+     * Writes as much of the outbound queue as the channel accepts, and
+     * registers interest in writability if anything is left over. Called on
+     * the loop thread.
+     */
+    void flush () {
+        if (closed.get()) return;
+        
+        try {
+            long before = outbound.written();
+            if (outbound.writeTo(channel)) writabilityChanged(true);
+            countBytesOut(outbound.written() - before);
+            
+            // Waits for OP_WRITE if the socket buffer filled up.
+            if (outbound.isEmpty())
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            else key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            server.debugLog("Write failed: " + e.getMessage());
+            closeNow();
+        }
+    }
+    
+    /**
+     * Reads whatever the channel has available and hands every complete
+     * message to the server. Called on the loop thread, or on the
+     * connection's own thread for blocking connections.
+     */
+    void read () {
+        try {
+            // Reads into the loop's shared buffer, unless a partial frame is
+            // waiting in this connection's own one.
+            ByteBuffer in;
+            if (partial == null && loop != null) {
+                in = loop.readBuffer();
+                in.clear();
+            } else {
+                if (partial == null) partial = BufferPool.DEFAULT.acquire(
+                        READ_BUFFER);
+                in = partial.buffer();
+            }
+            
+            int read = transport.read(in);
+            if (read < 0) {
+                closeNow();
+                return;
+            }
+            if (read > 0) {
+                lastRead = System.nanoTime();
+                probed = false;
+                metrics.addBytesIn(read);
+                if (server != null) server.metrics.addBytesIn(read);
+            }
+            
+            in.flip();
+            process(in);
+        } catch (IOException e) {
+            if (!closed.get() && server != null) server.debugLog(
+                    "Read failed: " + e.getMessage());
+            closeNow();
+        }
+    }
+    
+    /**
+     * Hands every complete frame of a buffer that the server admits to
+     * {@code received()}, and keeps whatever is left over.
+     * @param in the buffer to decode from, in read mode.
+     * @throws IOException if a frame is malformed or a reply failed.
+     */
+    private void process (ByteBuffer in) throws IOException {
+        while (true) {
+            
+            // File data is written out as it arrives, not once per frame.
+            if (chunkRemaining > 0) {
+                if (!in.hasRemaining()) break;
+                receiveChunk(in);
+                continue;
+            }
+            
+            // So are refused frames skipped.
+            if (skipRemaining > 0) {
+                if (!in.hasRemaining()) break;
+                int length = Math.min(in.remaining(), skipRemaining);
+                in.position(in.position() + length);
+                skipRemaining -= length;
+                continue;
+            }
+            
+            int frame = FrameCodec.peekFrameLength(in);
+            if (frame < 0) break;
+            if (FrameCodec.isRaw(in)) {
+                startChunk(FrameCodec.getRawHeader(in));
+                continue;
+            }
+            
+            // Frames over the rate limit are refused as soon as their header
+            // is in, so their bodies are never buffered. File announcements
+            // are small, and are admitted whole, as refusing one takes the
+            // size of the file to discard.
+            boolean announcement = (in.get(in.position())
+                    & FrameCodec.TYPE_MASK) == Message.Deliminator.BLB
+                    .ordinal();
+            if (!admitted && (!announcement || in.remaining() >= frame)) {
+                if (server != null && !server.admit(this, in, frame)) {
+                    if (closed.get()) return;
+                    if (paused) break;
+                    continue;
+                }
+                admitted = true;
+            }
+            if (in.remaining() < frame) break;
+            admitted = false;
+            
+            Message message = FrameCodec.decode(in, compression);
+            if (message.deliminator == Message.Deliminator.BLB)
+                startFile(message, true);
+            else received(message);
+            if (closed.get()) return;
+        }
+        
+        keepPartial(in);
+    }
+    
+    /**
+     * Drops a frame refused by admission control. Its bytes are skipped as
+     * they arrive, rather than buffered. A refused file announcement is
+     * read, and the data of its file discarded.
+     * @param in the buffer positioned at the frame, which holds at least
+     * its header, and all of it for a file announcement.
+     * @param frame the length of the frame.
+     * @throws IOException if a file announcement is malformed.
+     */
+    void discard (ByteBuffer in, int frame) throws IOException {
+        if ((in.get(in.position()) & FrameCodec.TYPE_MASK)
+                == Message.Deliminator.BLB.ordinal())
+            startFile(FrameCodec.decode(in, compression), false);
+        else skipRemaining = frame;
+    }
+    
+    /**
+     * Starts receiving a file announced by a BLB message.
+     * @param message the message, holding the file's size and name.
+     * @param accept false to discard the file's data as it arrives.
+     * @throws IOException if the announcement is malformed, or the file
+     * could not be opened.
+     */
+    private void startFile (Message message, boolean accept)
+            throws IOException {
+        if (fileName != null) throw new java.net.ProtocolException(
+                "File offered while another is being received.");
+        
+        String body = message.message;
+        int split = body.indexOf(' ');
+        long size;
+        try {
+            size = Long.parseLong(body.substring(0, Math.max(split, 0)));
+        } catch (NumberFormatException e) {
+            size = -1;
+        }
+        if (split < 0 || size < 0) throw new java.net.ProtocolException(
+                "Malformed file announcement.");
+        
+        fileName = body.substring(split + 1);
+        fileRemaining = size;
+        fileSink = accept ? openFile(fileName, size) : null;
+        if (size == 0) finishFile();
+    }
+    
+    /**
+     * Starts a raw frame of the file being received.
+     * @param length the length of the frame's body.
+     * @throws java.net.ProtocolException if no file is being received, or
+     * the frame runs past its end.
+     */
+    private void startChunk (int length) throws java.net.ProtocolException {
+        if (fileName == null) throw new java.net.ProtocolException(
+                "File data without a file being received.");
+        if (length > fileRemaining) throw new java.net.ProtocolException(
+                "File data past the announced size.");
+        
+        chunkRemaining = length;
+    }
+    
+    /**
+     * Writes as much of the current raw frame as the buffer holds to the
+     * file, straight from the buffer.
+     * @param in the buffer positioned at file data.
+     * @throws IOException if writing the file fails.
+     */
+    private void receiveChunk (ByteBuffer in) throws IOException {
+        int length = Math.min(in.remaining(), chunkRemaining);
+        ByteBuffer data = in.slice(in.position(), length);
+        in.position(in.position() + length);
+        
+        if (fileSink != null) while (data.hasRemaining()) fileSink.write(data);
+        chunkRemaining -= length;
+        fileRemaining -= length;
+        
+        if (fileRemaining == 0) finishFile();
+    }
+    
+    /**
+     * Hands a completely received file over.
+     * @throws IOException if the receiver fails.
+     */
+    private void finishFile () throws IOException {
+        FileChannel file = fileSink;
+        String name = fileName;
+        fileSink = null;
+        fileName = null;
+        
+        if (file != null) fileReceived(name, file);
+    }
+    
+    /**
+     * Picks the channel an incoming file is written to. Asks the server by
+     * default.
+     * @param name the name the sender gave the file.
+     * @param size the size of the file, in bytes.
+     * @return the channel, or null to discard the file.
+     * @throws IOException if the channel could not be opened.
+     */
+    FileChannel openFile (String name, long size) throws IOException {
+        return server == null ? null : server.onFileOffered(this, name, size);
+    }
+    
+    /**
+     * Hands over a file that has been received completely. Tells the server
+     * by default.
+     * @param name the name the sender gave the file.
+     * @param file the channel the file was written to.
+     * @throws IOException if the receiver fails.
+     */
+    void fileReceived (String name, FileChannel file) throws IOException {
+        if (server == null) file.close();
+        else server.onFileReceived(this, name, file);
+    }
+    
+    /**
+     * Stops reading this loop-owned connection for a while, leaving the
+     * unread frames buffered.
+     * @param nanos the time to pause for.
+     */
+    void pauseReads (long nanos) {
+        paused = true;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        server.resumeLater(this, nanos);
+    }
+    
+    /**
+     * Resumes reading after a pause, starting with the frames buffered when
+     * it began. Called on the loop thread.
+     */
+    void resumeReads () {
+        paused = false;
+        if (closed.get()) return;
+        
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        if (partial == null) return;
+        
+        try {
+            ByteBuffer in = partial.buffer();
+            in.flip();
+            process(in);
+        } catch (IOException e) {
+            server.debugLog("Read failed: " + e.getMessage());
+            closeNow();
+        }
+    }
+    
+    /**
+     * Handles a message read from this connection. Hands it to the server by
+     * default.
+     * @param message the received message.
+     * @throws IOException if a reply could not be sent.
+     */
+    void received (Message message) throws IOException {
+        server.receive(this, message);
+    }
+    
+    /**
+     * Keeps the unread bytes of a buffer, which hold the start of a frame,
+     * in this connection's own buffer until the rest of the frame arrives.
+     * Loop-owned connections give their buffer back once they have nothing
+     * pending, so idle connections do not hold on to one.
+     * @param in the buffer just decoded from, in read mode.
+     * @throws java.net.ProtocolException if the pending frame is malformed.
+     */
+    private void keepPartial (ByteBuffer in)
+            throws java.net.ProtocolException {
+        
+        if (!in.hasRemaining()) {
+            if (partial == null) return;
+            
+            if (loop != null) {
+                partial.release();
+                partial = null;
+            } else partial.buffer().clear();
+            return;
+        }
+        
+        // Moves the bytes to a buffer with room for more of the frame, or
+        // for every frame left over if reading was paused. The buffer grows
+        // with what has arrived rather than with what the header announces,
+        // so headers alone cannot make a peer hold on to large buffers.
+        int frame = FrameCodec.peekFrameLength(in);
+        int needed = Math.max(in.remaining(), READ_BUFFER);
+        if (frame > in.remaining()) needed = Math.max(needed, (int)Math.min(
+                frame, 2L * in.remaining()));
+        if (partial == null || partial.buffer().capacity() < needed) {
+            PooledBuffer larger = BufferPool.DEFAULT.acquire(needed);
+            larger.buffer().put(in);
+            if (partial != null) partial.release();
+            partial = larger;
+        } else in.compact();
+    }
+    
+    /**
+     * Returns this connection's read buffer to the pool. Must be called on
+     * the thread that reads this connection, after it has stopped reading.
+     */
+    void releaseBuffers () {
+        if (partial == null) return;
+        
+        partial.release();
+        partial = null;
+    }
+    
+    /**
+     * Checks whether this connection has been closed.
+     * @return true if this connection is closed, false otherwise.
+     */
+    public boolean isClosed () {
+        return closed.get();
+    }
+    
     @Override
-    public void close () throws java.io.IOException {
-        cache.close();
-        in.close();
-        out.close();
-        socket.close();
+    public void close () throws IOException {
+        
+        // Loop-owned connections are torn down on their own loop.
+        if (loop != null && !loop.inLoop() && loop.isRunning()) {
+            loop.execute(this::closeNow);
+            return;
+        }
+        
+        closeNow();
+    }
+    
+    /**
+     * Closes this connection on the calling thread and notifies the server.
+     */
+    void closeNow () {
+        if (!closed.compareAndSet(false, true)) return;
+        
+        HashedWheelTimer.Timeout timeout = liveness;
+        if (timeout != null) timeout.cancel();
+        
+        outbound.clear();
+        
+        Compression.Session session = compression;
+        if (session != null) session.end();
+        
+        // A file cut short is closed, but not handed over.
+        FileChannel file = fileSink;
+        if (file != null) try {
+            file.close();
+        } catch (IOException e) {
+            if (server != null) server.debugLog("Close failed: "
+                    + e.getMessage());
+        }
+        
+        // Blocking connections release their buffer on their own thread.
+        if (loop != null) releaseBuffers();
+        try {
+            if (cache != null) cache.close();
+            in.close();
+            out.close();
+            if (socket != null) socket.close();
+            if (transport != null) transport.close();
+        } catch (IOException e) {
+            if (server != null) server.debugLog("Close failed: "
+                    + e.getMessage());
+        }
+        
+        if (server != null) server.disconnected(this);
     }
 }
@@ -0,0 +1,188 @@
+/*
+ * Billiam Library is a collection of packages and classes
+ * created by Will Harris.
+ */
+package billiam.sockettools;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Traffic counters of a single connection. The counters are plain fields
+ * and one array updated atomically, so a connection pays a couple of hundred
+ * bytes for them rather than an object per counter. Frames are counted by
+ * deliminator, each way.
+ * <p>
+ * As with {@link ServerMetrics}, rates are measured between calls to
+ * {@code sample()}. The state for them is only allocated by the first
+ * sample, so unsampled connections do not pay for it.
+ * @author willharris
+ */
+public final class ConnectionMetrics {
+    
+    private static final AtomicLongFieldUpdater<ConnectionMetrics> BYTES_IN =
+            AtomicLongFieldUpdater.newUpdater(ConnectionMetrics.class,
+                    "bytesIn");
+    private static final AtomicLongFieldUpdater<ConnectionMetrics> BYTES_OUT =
+            AtomicLongFieldUpdater.newUpdater(ConnectionMetrics.class,
+                    "bytesOut");
+    
+    private static final Message.Deliminator[] TYPES =
+            Message.Deliminator.values();
+    
+    private volatile long bytesIn;
+    private volatile long bytesOut;
+    /**
+     * Frames received by deliminator, then frames sent by deliminator.
+     */
+    private final AtomicLongArray frames = new AtomicLongArray(
+            2 * TYPES.length);
+    /**
+     * The round trip time of the last answered ping, in nanoseconds.
+     */
+    private volatile long lastPingRtt = -1;
+    
+    // Rate sampling state, guarded by this.
+    private long sampledAt = System.nanoTime();
+    private long[] sampled;
+    private double[] rates;
+    
+    void addBytesIn (long bytes) {
+        BYTES_IN.addAndGet(this, bytes);
+    }
+    
+    void addBytesOut (long bytes) {
+        BYTES_OUT.addAndGet(this, bytes);
+    }
+    
+    void addFrameIn (Message.Deliminator deliminator) {
+        frames.incrementAndGet(deliminator.ordinal());
+    }
+    
+    void addFrameOut (Message.Deliminator deliminator) {
+        frames.incrementAndGet(TYPES.length + deliminator.ordinal());
+    }
+    
+    void setLastPingRtt (long nanos) {
+        lastPingRtt = nanos;
+    }
+    
+    /**
+     * Gets the number of bytes received.
+     * @return the bytes received.
+     */
+    public long bytesIn () {
+        return bytesIn;
+    }
+    
+    /**
+     * Gets the number of bytes written to the socket.
+     * @return the bytes sent.
+     */
+    public long bytesOut () {
+        return bytesOut;
+    }
+    
+    /**
+     * Gets the number of messages received.
+     * @return the messages received.
+     */
+    public long framesIn () {
+        long total = 0;
+        for (int n = 0; n < TYPES.length; ++n) total += frames.get(n);
+        return total;
+    }
+    
+    /**
+     * Gets the number of messages sent or queued.
+     * @return the messages sent.
+     */
+    public long framesOut () {
+        long total = 0;
+        for (int n = 0; n < TYPES.length; ++n)
+            total += frames.get(TYPES.length + n);
+        return total;
+    }
+    
+    /**
+     * Gets the number of messages of a type received.
+     * @param deliminator the type of message.
+     * @return the messages received.
+     */
+    public long framesIn (Message.Deliminator deliminator) {
+        return frames.get(deliminator.ordinal());
+    }
+    
+    /**
+     * Gets the number of messages of a type sent or queued.
+     * @param deliminator the type of message.
+     * @return the messages sent.
+     */
+    public long framesOut (Message.Deliminator deliminator) {
+        return frames.get(TYPES.length + deliminator.ordinal());
+    }
+    
+    /**
+     * Gets the rate messages of a type were received at, as of the last
+     * sample.
+     * @param deliminator the type of message.
+     * @return messages per second between the last two samples, or 0 if
+     * there were fewer than two.
+     */
+    public synchronized double framesInPerSecond (
+            Message.Deliminator deliminator) {
+        return rates == null ? 0 : rates[deliminator.ordinal()];
+    }
+    
+    /**
+     * Gets the rate messages of a type were sent at, as of the last sample.
+     * @param deliminator the type of message.
+     * @return messages per second between the last two samples, or 0 if
+     * there were fewer than two.
+     */
+    public synchronized double framesOutPerSecond (
+            Message.Deliminator deliminator) {
+        return rates == null ? 0 : rates[TYPES.length
+                + deliminator.ordinal()];
+    }
+    
+    /**
+     * Updates the frame rates with the traffic since the previous sample.
+     * The first sample only records the counts, as there is no interval to
+     * measure yet.
+     */
+    public synchronized void sample () {
+        long now = System.nanoTime();
+        double seconds = (now - sampledAt) / 1e9;
+        
+        if (sampled == null) {
+            sampled = new long[frames.length()];
+            rates = new double[frames.length()];
+            seconds = 0;
+        }
+        
+        for (int n = 0; n < sampled.length; ++n) {
+            long count = frames.get(n);
+            if (seconds > 0) rates[n] = (count - sampled[n]) / seconds;
+            sampled[n] = count;
+        }
+        
+        sampledAt = now;
+    }
+    
+    /**
+     * Gets the round trip time of the last ping the client answered.
+     * @return the round trip time in nanoseconds, or -1 if none was
+     * answered yet.
+     */
+    public long lastPingRtt () {
+        return lastPingRtt;
+    }
+    
+    @Override
+    public String toString () {
+        return "in=" + bytesIn + " B/" + framesIn() + " frames, out="
+                + bytesOut + " B/" + framesOut() + " frames, rtt="
+                + (lastPingRtt < 0 ? "-" : lastPingRtt / 1000 + "us");
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Billiam Library is a collection of packages and classes
+ * created by Will Harris.
+ */
+package billiam.sockettools;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The open connections of a server, split into shards so that adding and
+ * removing a connection is O(1) and threads registering connections at the
+ * same time rarely touch the same shard. Connections of an event loop all
+ * live in the loop's shard; connections served by their own thread are
+ * spread over the shards.
+ * <p>
+ * Every connection is given an id that also names its shard, so a lookup by
+ * id goes straight to one map. Iteration is weakly consistent: it never
+ * fails while connections come and go, and sees every connection that is
+ * registered for its whole duration.
+ * @author willharris
+ */
+final class ConnectionRegistry implements Iterable<Connection<?>> {
+    
+    /**
+     * The connections of each shard, by id.
+     */
+    private final ConcurrentHashMap<Long, Connection<?>>[] shards;
+    /**
+     * Counts registrations, to give out ids.
+     */
+    private final AtomicLong sequence = new AtomicLong();
+    
+    /**
+     * Creates an empty registry.
+     * @param shardCount the number of shards, usually the number of event
+     * loops or of cores.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    ConnectionRegistry (int shardCount) {
+        if (shardCount < 1) throw new IllegalArgumentException(
+                "Argument \"shardCount\" must be positive.");
+        
+        shards = new ConcurrentHashMap[shardCount];
+        for (int n = 0; n < shardCount; ++n)
+            shards[n] = new ConcurrentHashMap<>();
+    }
+    
+    /**
+     * Registers a connection and gives it an id.
+     * @param connection the connection to register.
+     * @param shard the shard to put it in, such as the index of its event
+     * loop, or -1 to spread connections over the shards.
+     * @return the id of the connection.
+     */
+    long add (Connection<?> connection, int shard) {
+        long next = sequence.incrementAndGet();
+        if (shard < 0) shard = (int)(next % shards.length);
+        else shard %= shards.length;
+        
+        // The shard is kept in the id, so lookups need no search.
+        long id = next * shards.length + shard;
+        connection.id = id;
+        shards[shard].put(id, connection);
+        return id;
+    }
+    
+    /**
+     * Unregisters a connection.
+     * @param connection the connection to unregister.
+     * @return true if the connection was registered.
+     */
+    boolean remove (Connection<?> connection) {
+        long id = connection.id;
+        return id > 0 && shards[shardOf(id)].remove(id, connection);
+    }
+    
+    /**
+     * Looks up a connection by id.
+     * @param id the id of the connection.
+     * @return the connection, or null if no open connection has the id.
+     */
+    Connection<?> get (long id) {
+        return id > 0 ? shards[shardOf(id)].get(id) : null;
+    }
+    
+    /**
+     * Gets the number of registered connections.
+     * @return the connection count.
+     */
+    int size () {
+        long size = 0;
+        for (ConcurrentHashMap<Long, Connection<?>> shard : shards)
+            size += shard.mappingCount();
+        return (int)Math.min(size, Integer.MAX_VALUE);
+    }
+    
+    private int shardOf (long id) {
+        return (int)(id % shards.length);
+    }
+    
+    /**
+     * Iterates over every registered connection, shard by shard.
+     * @return a weakly consistent iterator.
+     */
+    @Override
+    public Iterator<Connection<?>> iterator () {
+        return new Iterator<Connection<?>>() {
+            private int shard;
+            private Iterator<Connection<?>> current = shards[0].values()
+                    .iterator();
+            
+            @Override
+            public boolean hasNext () {
+                while (!current.hasNext()) {
+                    if (++shard >= shards.length) return false;
+                    current = shards[shard].values().iterator();
+                }
+                return true;
+            }
+            
+            @Override
+            public Connection<?> next () {
+                if (!hasNext()) throw new NoSuchElementException();
+                return current.next();
+            }
+        };
+    }
+}
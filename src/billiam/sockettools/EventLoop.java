@@ -0,0 +1,280 @@
+/*
+ * Billiam Library is a collection of packages and classes
+ * created by Will Harris.
+ */
+package billiam.sockettools;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single selector thread that performs every read and write on the
+ * connections registered with it, and may accept connections for a server.
+ * All state of a registered connection is only ever touched by this thread;
+ * other threads hand work over with {@code execute()}. Accepted connections
+ * are handed to the loop the server assigns them, which may be this one.
+ * @author willharris
+ */
+final class EventLoop implements Runnable {
+    
+    /**
+     * The server whose connections this loop serves.
+     */
+    private final Server server;
+    /**
+     * The selector every channel of this loop is registered with.
+     */
+    private final Selector selector;
+    /**
+     * The thread running this loop.
+     */
+    private final Thread thread;
+    /**
+     * The index of this loop within its server, which is also the shard of
+     * the server's registry its connections are kept in, or -1 for a loop
+     * that only accepts.
+     */
+    final int index;
+    /**
+     * The number of connections assigned to this loop and not yet closed.
+     */
+    final java.util.concurrent.atomic.AtomicInteger load = new
+        java.util.concurrent.atomic.AtomicInteger();
+    /**
+     * Work submitted from other threads, run between selects.
+     */
+    private final ConcurrentLinkedQueue<Runnable> tasks = new
+        ConcurrentLinkedQueue<>();
+    
+    /**
+     * The buffer every connection of this loop reads into. Only bytes of an
+     * incomplete frame are moved to a buffer of the connection's own. Null
+     * for a loop that only accepts.
+     */
+    private final PooledBuffer readBuffer;
+    
+    /**
+     * The size of the loop's shared read buffer.
+     */
+    private static final int READ_BUFFER = 64 * 1024;
+    
+    /**
+     * True until shutdown() is called.
+     */
+    private volatile boolean running = true;
+    
+    EventLoop (Server server, String name, int index) throws IOException {
+        this.server = server;
+        this.index = index;
+        this.selector = Selector.open();
+        this.readBuffer = index < 0 ? null : BufferPool.DEFAULT.acquire(
+                READ_BUFFER);
+        this.thread = new Thread(this, name);
+    }
+    
+    /**
+     * Starts the loop's thread.
+     */
+    void start () {
+        thread.start();
+    }
+    
+    /**
+     * Checks if the calling thread is this loop's thread.
+     * @return true if called from this loop.
+     */
+    boolean inLoop () {
+        return Thread.currentThread() == thread;
+    }
+    
+    /**
+     * Checks if this loop still processes submitted tasks.
+     * @return true if the loop has not terminated.
+     */
+    boolean isRunning () {
+        return running && thread.isAlive();
+    }
+    
+    /**
+     * Gets the buffer connections of this loop read into. Only valid on the
+     * loop thread, and only until the next read.
+     * @return the shared read buffer.
+     */
+    ByteBuffer readBuffer () {
+        return readBuffer.buffer();
+    }
+    
+    /**
+     * Runs a task on this loop's thread. The task is run immediately if this
+     * is already the loop's thread.
+     * @param task the task to run.
+     */
+    void execute (Runnable task) {
+        if (inLoop()) {
+            task.run();
+            return;
+        }
+        
+        tasks.add(task);
+        selector.wakeup();
+    }
+    
+    /**
+     * Runs a task on this loop's thread after the current pass over the
+     * ready keys, even if this is already the loop's thread. Used to batch
+     * work, such as flushes, that several events of one pass may request.
+     * @param task the task to run.
+     */
+    void executeLater (Runnable task) {
+        tasks.add(task);
+        if (!inLoop()) selector.wakeup();
+    }
+    
+    /**
+     * Starts accepting connections from the given channel on this loop.
+     * @param acceptor the bound server channel.
+     */
+    void listen (ServerSocketChannel acceptor) {
+        execute(() -> {
+            try {
+                acceptor.configureBlocking(false);
+                acceptor.register(selector, SelectionKey.OP_ACCEPT);
+            } catch (IOException e) {
+                server.stdLog("Could not listen: " + e.getMessage());
+            }
+        });
+    }
+    
+    @Override
+    public void run () {
+        while (running) {
+            try {
+                // Pending tasks must not wait for the next event.
+                if (tasks.isEmpty()) selector.select();
+                else selector.selectNow();
+            } catch (IOException e) {
+                server.stdLog("Selector failed: " + e.getMessage());
+                break;
+            }
+            
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                
+                if (!key.isValid()) continue;
+                
+                if (key.isAcceptable()) {
+                    accept((ServerSocketChannel)key.channel());
+                    continue;
+                }
+                
+                Connection<?> connection = (Connection<?>)key.attachment();
+                if (key.isWritable()) connection.flush();
+                if (key.isValid() && key.isReadable()) connection.read();
+            }
+            
+            // Runs after the keys, so writes queued while handling them are
+            // flushed together.
+            runTasks();
+        }
+        
+        // Anything submitted while shutting down still runs, on this thread.
+        runTasks();
+        
+        try {
+            selector.close();
+        } catch (IOException e) {
+            server.debugLog("Selector close failed: " + e.getMessage());
+        }
+        
+        if (readBuffer != null) readBuffer.release();
+    }
+    
+    /**
+     * Drains the task queue.
+     */
+    private void runTasks () {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                server.stdLog("Task failed: " + e);
+            }
+        }
+    }
+    
+    /**
+     * Accepts every pending connection on the given channel, and hands each
+     * to the loop the server assigns it.
+     * @param acceptor the channel to accept from.
+     */
+    private void accept (ServerSocketChannel acceptor) {
+        SocketChannel channel;
+        
+        try {
+            while ((channel = acceptor.accept()) != null) {
+                channel.configureBlocking(false);
+                Connection.setNoDelay(channel);
+                
+                server.assignLoop().adopt(channel);
+            }
+        } catch (IOException e) {
+            server.debugLog("Accept failed: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Takes over an accepted channel. The channel is registered on this
+     * loop's thread, as registering blocks while the selector is selecting.
+     * @param channel the accepted, non-blocking channel.
+     */
+    void adopt (SocketChannel channel) {
+        load.incrementAndGet();
+        execute(() -> register(channel));
+    }
+    
+    /**
+     * Registers an accepted channel with this loop's selector and tells the
+     * server about its connection.
+     * @param channel the accepted channel.
+     */
+    private void register (SocketChannel channel) {
+        try {
+            Connection<?> connection = server.createConnection(channel);
+            connection.server = server;
+            connection.loop = this;
+            connection.key = channel.register(selector, SelectionKey.OP_READ,
+                    connection);
+            
+            server.connected(connection);
+        } catch (IOException | RuntimeException e) {
+            // Such as ClosedSelectorException, if the loop is shutting down.
+            load.decrementAndGet();
+            server.debugLog("Register failed: " + e);
+            
+            try {
+                channel.close();
+            } catch (IOException f) {
+                server.debugLog("Close failed: " + f.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * Stops the loop and waits for its thread to end.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    void shutdown () throws InterruptedException {
+        running = false;
+        selector.wakeup();
+        if (!inLoop()) thread.join();
+    }
+}
@@ -0,0 +1,446 @@
+/*
+ * Billiam Library is a collection of packages and classes
+ * created by Will Harris.
+ */
+package billiam.sockettools;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Static class that encodes messages into binary frames and decodes them
+ * back, straight to and from ByteBuffers. A frame is laid out as:
+ * <pre>
+ * +--------+----------------+-----------------+------------------+
+ * | opcode | correlation id | body length     | body             |
+ * | 1 byte | varint, 0-5 B  | varint, 1-4 B   | UTF-8, length B  |
+ * +--------+----------------+-----------------+------------------+
+ * </pre>
+ * The low four bits of the opcode hold the deliminator's ordinal. The high
+ * four bits are flags; the {@code CORRELATED} flag says a correlation id
+ * follows, the {@code COMPRESSED} flag says the body was deflated by a
+ * {@link Compression} extension, the {@code RAW} flag says the body is raw
+ * file data rather than text, and the others are reserved for extensions
+ * and zero otherwise. Raw frames never carry a correlation id.
+ * Lengths and ids are unsigned LEB128 varints, so bodies under 128 bytes
+ * cost a single length byte.
+ * @author willharris
+ */
+public final class FrameCodec {
+    
+    /**
+     * The largest body, in bytes, a frame may carry.
+     */
+    public static final int MAX_BODY = 1 << 24;
+    
+    /**
+     * The largest header a frame can have: one opcode byte, a five byte
+     * correlation id and a four byte length.
+     */
+    public static final int MAX_HEADER = 10;
+    
+    /**
+     * Mask of the opcode bits holding the deliminator.
+     */
+    static final int TYPE_MASK = 0x0F;
+    
+    /**
+     * Opcode flag of frames that carry a correlation id.
+     */
+    static final int CORRELATED = 0x10;
+    
+    /**
+     * Opcode flag of frames whose body is compressed.
+     */
+    static final int COMPRESSED = 0x20;
+    
+    /**
+     * Opcode flag of frames whose body is a chunk of a file.
+     */
+    static final int RAW = 0x40;
+    
+    /**
+     * Deliminators indexed by their opcode.
+     */
+    private static final Message.Deliminator[] TYPES =
+            Message.Deliminator.values();
+    
+    /**
+     * Scratch space for decoding bodies out of direct buffers.
+     */
+    private static final ThreadLocal<byte[]> SCRATCH =
+            ThreadLocal.withInitial(() -> new byte[256]);
+    
+    /**
+     * Gets the number of bytes a message's frame will take.
+     * @param message the message to measure.
+     * @return the length of the encoded frame.
+     */
+    public static int frameLength (Message message) {
+        int body = utf8Length(message.message);
+        return 1 + idLength(message.correlationId) + varintLength(body)
+                + body;
+    }
+    
+    /**
+     * Encodes a message into a new buffer of exactly the right size. The
+     * returned buffer is ready to be written.
+     * @param message the message to encode.
+     * @return the encoded frame.
+     */
+    public static ByteBuffer encode (Message message) {
+        ByteBuffer frame = ByteBuffer.allocate(frameLength(message));
+        encode(message, frame);
+        frame.flip();
+        return frame;
+    }
+    
+    /**
+     * Encodes a message into the given buffer at its position, without going
+     * through an intermediate byte array.
+     * @param message the message to encode.
+     * @param out the buffer to write the frame into.
+     * @throws java.nio.BufferOverflowException if the frame does not fit.
+     */
+    public static void encode (Message message, ByteBuffer out) {
+        String body = message.message;
+        int length = utf8Length(body);
+        
+        if (length > MAX_BODY) throw new IllegalArgumentException(
+                "Message body of " + length + " bytes exceeds the maximum of "
+                + MAX_BODY + ".");
+        if (out.remaining() < 1 + idLength(message.correlationId)
+                + varintLength(length) + length)
+            throw new java.nio.BufferOverflowException();
+        
+        putHeader(out, message, 0, length);
+        putUtf8(out, body);
+    }
+    
+    /**
+     * Writes the header of a message's frame.
+     * @param out the buffer to write to.
+     * @param message the message the frame carries.
+     * @param flags extra opcode flags.
+     * @param length the length of the body that will follow.
+     */
+    static void putHeader (ByteBuffer out, Message message, int flags,
+            int length) {
+        int id = message.correlationId;
+        int opcode = message.deliminator.ordinal() | flags;
+        
+        if (id == 0) out.put((byte)opcode);
+        else {
+            out.put((byte)(opcode | CORRELATED));
+            putVarint(out, id);
+        }
+        putVarint(out, length);
+    }
+    
+    /**
+     * Writes the header of a raw frame.
+     * @param out the buffer to write to.
+     * @param deliminator the type of the frame.
+     * @param length the length of the raw body that will follow.
+     */
+    static void putRawHeader (ByteBuffer out, Message.Deliminator deliminator,
+            int length) {
+        out.put((byte)(deliminator.ordinal() | RAW));
+        putVarint(out, length);
+    }
+    
+    /**
+     * Checks if the frame at the buffer's position is raw, without consuming
+     * anything. The buffer must not be empty.
+     * @param in the buffer holding the frame.
+     * @return true if the frame's body is raw file data.
+     */
+    static boolean isRaw (ByteBuffer in) {
+        return (in.get(in.position()) & RAW) != 0;
+    }
+    
+    /**
+     * Gets the type of the frame at the buffer's position, without consuming
+     * anything or allocating. The buffer must not be empty.
+     * @param in the buffer holding an encoded, non-raw frame.
+     * @return the deliminator of the frame.
+     */
+    static Message.Deliminator peekType (ByteBuffer in) {
+        return TYPES[in.get(in.position()) & TYPE_MASK];
+    }
+    
+    /**
+     * Reads the header of a raw frame, leaving the buffer at its body. The
+     * caller must know the whole header is available.
+     * @param in the buffer to read from.
+     * @return the length of the body.
+     * @throws ProtocolException if the header is malformed.
+     */
+    static int getRawHeader (ByteBuffer in) throws ProtocolException {
+        int opcode = in.get() & 0xFF;
+        if ((opcode & ~(TYPE_MASK | RAW)) != 0) throw new ProtocolException(
+                "Unsupported raw frame flags " + Integer.toHexString(opcode)
+                + ".");
+        if ((opcode & TYPE_MASK) != Message.Deliminator.BLB.ordinal()) throw
+            new ProtocolException("Raw frame of opcode " + opcode + ".");
+        
+        return getVarint(in);
+    }
+    
+    /**
+     * Gets the length of the frame at the buffer's position without
+     * consuming anything.
+     * @param in the buffer holding the frame.
+     * @return the length of the whole frame, or -1 if not enough bytes are
+     * available to read its header.
+     * @throws ProtocolException if the header is malformed.
+     */
+    public static int peekFrameLength (ByteBuffer in)
+            throws ProtocolException {
+        int position = in.position();
+        if (in.remaining() < 2) return -1;
+        
+        // Skips the correlation id, if there is one.
+        int header = 1;
+        if ((in.get(position) & CORRELATED) != 0) {
+            for (int n = 0; ; ++n) {
+                if (n == 5) throw new ProtocolException(
+                        "Correlation id varint is too long.");
+                if (position + header >= in.limit()) return -1;
+                if ((in.get(position + header++) & 0x80) == 0) break;
+            }
+        }
+        
+        // Reads the length varint.
+        int length = 0;
+        for (int n = 0; n < 4; ++n) {
+            if (position + header + n >= in.limit()) return -1;
+            
+            byte b = in.get(position + header + n);
+            length |= (b & 0x7F) << (7 * n);
+            
+            if ((b & 0x80) == 0) {
+                if (length > MAX_BODY) throw new ProtocolException(
+                        "Frame body of " + length + " bytes exceeds the "
+                        + "maximum of " + MAX_BODY + ".");
+                return header + 1 + n + length;
+            }
+        }
+        
+        throw new ProtocolException("Frame length varint is too long.");
+    }
+    
+    /**
+     * Gets the correlation id of the frame at the buffer's position without
+     * consuming anything. The caller must know the whole header is
+     * available.
+     * @param in the buffer holding the frame.
+     * @return the correlation id, or 0 if the frame has none.
+     */
+    static int peekCorrelationId (ByteBuffer in) {
+        if ((in.get(in.position()) & CORRELATED) == 0) return 0;
+        
+        ByteBuffer header = in.duplicate();
+        header.position(in.position() + 1);
+        return getVarint(header);
+    }
+    
+    /**
+     * Decodes the frame at the buffer's position. If the buffer does not yet
+     * hold the whole frame, nothing is consumed and null is returned, so the
+     * caller can read more bytes and try again.
+     * @param in the buffer to decode from.
+     * @return the decoded message, or null if the frame is incomplete.
+     * @throws ProtocolException if the frame is malformed.
+     */
+    public static Message decode (ByteBuffer in) throws ProtocolException {
+        return decode(in, null);
+    }
+    
+    /**
+     * Decodes the frame at the buffer's position, decompressing its body if
+     * needed.
+     * @param in the buffer to decode from.
+     * @param compression the compression negotiated on the connection, or
+     * null if none was.
+     * @return the decoded message, or null if the frame is incomplete.
+     * @throws ProtocolException if the frame is malformed, or compressed
+     * without compression having been negotiated.
+     */
+    static Message decode (ByteBuffer in, Compression.Session compression)
+            throws ProtocolException {
+        int frame = peekFrameLength(in);
+        if (frame < 0 || in.remaining() < frame) return null;
+        
+        int opcode = in.get() & 0xFF;
+        if ((opcode & ~(TYPE_MASK | CORRELATED | COMPRESSED)) != 0) throw new
+            ProtocolException("Unsupported frame flags "
+                    + Integer.toHexString(opcode) + ".");
+        
+        int type = opcode & TYPE_MASK;
+        if (type >= TYPES.length) throw new ProtocolException(
+                "Unknown opcode " + opcode + ".");
+        
+        int id = (opcode & CORRELATED) != 0 ? getVarint(in) : 0;
+        int length = getVarint(in);
+        
+        if ((opcode & COMPRESSED) == 0)
+            return new Message(TYPES[type], getUtf8(in, length), id);
+        
+        if (compression == null) throw new ProtocolException(
+                "Compressed frame on a connection without compression.");
+        return new Message(TYPES[type], compression.decode(in, length), id);
+    }
+    
+    /**
+     * Gets the number of bytes a correlation id takes in a frame header.
+     * @param id the correlation id, or 0 for none.
+     * @return the encoded length of the id.
+     */
+    private static int idLength (int id) {
+        return id == 0 ? 0 : varintLength(id);
+    }
+    
+    /**
+     * Gets the number of bytes a varint takes.
+     * @param value the non-negative value to measure.
+     * @return the encoded length of the value.
+     */
+    static int varintLength (int value) {
+        if (value < 1 << 7) return 1;
+        if (value < 1 << 14) return 2;
+        if (value < 1 << 21) return 3;
+        if (value < 1 << 28) return 4;
+        return 5;
+    }
+    
+    /**
+     * Writes a non-negative varint.
+     * @param out the buffer to write to.
+     * @param value the value to write.
+     */
+    static void putVarint (ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte)value);
+    }
+    
+    /**
+     * Reads a varint. The caller must know the whole varint is available.
+     * @param in the buffer to read from.
+     * @return the value read.
+     */
+    static int getVarint (ByteBuffer in) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        
+        do {
+            b = in.get();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        
+        return value;
+    }
+    
+    /**
+     * Counts the bytes needed to encode a String as UTF-8, without encoding
+     * it.
+     * @param text the text to measure.
+     * @return the UTF-8 length of the text.
+     */
+    static int utf8Length (CharSequence text) {
+        int length = text.length();
+        int bytes = length;
+        
+        for (int n = 0; n < length; ++n) {
+            char c = text.charAt(n);
+            
+            if (c < 0x80) continue;
+            if (c < 0x800) bytes += 1;
+            else if (Character.isHighSurrogate(c) && n + 1 < length
+                    && Character.isLowSurrogate(text.charAt(n + 1))) {
+                // The pair takes four bytes for two chars.
+                bytes += 2;
+                ++n;
+            }
+            else bytes += 2;
+        }
+        
+        return bytes;
+    }
+    
+    /**
+     * Encodes text as UTF-8 straight into a buffer. Unpaired surrogates are
+     * written as '?', which keeps the length equal to utf8Length().
+     * @param out the buffer to write to.
+     * @param text the text to encode.
+     */
+    static void putUtf8 (ByteBuffer out, CharSequence text) {
+        int length = text.length();
+        
+        for (int n = 0; n < length; ++n) {
+            char c = text.charAt(n);
+            
+            if (c < 0x80) out.put((byte)c);
+            else if (c < 0x800) {
+                out.put((byte)(0xC0 | (c >> 6)));
+                out.put((byte)(0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && n + 1 < length
+                    && Character.isLowSurrogate(text.charAt(n + 1))) {
+                int point = Character.toCodePoint(c, text.charAt(++n));
+                out.put((byte)(0xF0 | (point >> 18)));
+                out.put((byte)(0x80 | ((point >> 12) & 0x3F)));
+                out.put((byte)(0x80 | ((point >> 6) & 0x3F)));
+                out.put((byte)(0x80 | (point & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                // Pads to the three bytes utf8Length() counted.
+                out.put((byte)'?');
+                out.put((byte)'?');
+                out.put((byte)'?');
+            } else {
+                out.put((byte)(0xE0 | (c >> 12)));
+                out.put((byte)(0x80 | ((c >> 6) & 0x3F)));
+                out.put((byte)(0x80 | (c & 0x3F)));
+            }
+        }
+    }
+    
+    /**
+     * Decodes UTF-8 bytes at the buffer's position into a String and
+     * advances the buffer past them.
+     * @param in the buffer to read from.
+     * @param length the number of bytes to decode.
+     * @return the decoded text.
+     */
+    static String getUtf8 (ByteBuffer in, int length) {
+        String text;
+        
+        // Heap buffers are decoded in place.
+        if (in.hasArray()) {
+            text = new String(in.array(), in.arrayOffset() + in.position(),
+                    length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+            return text;
+        }
+        
+        // Only small scratch arrays are kept, so one huge frame does not pin
+        // its size for the thread's lifetime.
+        byte[] scratch = SCRATCH.get();
+        if (scratch.length < length) {
+            scratch = new byte[length];
+            if (length <= 1 << 16) SCRATCH.set(scratch);
+        }
+        
+        in.get(scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+    
+    // Prevents creating a new instance of this class, as it only has static
+    // fields.
+    private FrameCodec () {}
+}
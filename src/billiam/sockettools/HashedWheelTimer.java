@@ -0,0 +1,278 @@
+/*
+ * Billiam Library is a collection of packages and classes
+ * created by Will Harris.
+ */
+package billiam.sockettools;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A timer for very many short tasks that are usually cancelled, such as
+ * per-connection timeouts. Tasks are hashed into the buckets of a wheel by
+ * their deadline, and a single thread advances the wheel one bucket per tick
+ * and runs the tasks that are due. Scheduling and cancelling are O(1) and
+ * lock-free; the price is that a task runs up to one tick late.
+ * <p>
+ * Tasks run on the timer's thread and must be short. Hand longer work to
+ * another thread.
+ * @author willharris
+ */
+public final class HashedWheelTimer implements java.io.Closeable {
+    
+    /**
+     * The length of a tick, in nanoseconds.
+     */
+    private final long tick;
+    /**
+     * The buckets of the wheel. Only touched by the timer thread.
+     */
+    private final Bucket[] wheel;
+    /**
+     * Masks a tick count to a bucket index.
+     */
+    private final int mask;
+    /**
+     * Timeouts scheduled since the last tick, waiting to enter the wheel.
+     */
+    private final ConcurrentLinkedQueue<Timeout> scheduled = new
+        ConcurrentLinkedQueue<>();
+    /**
+     * Timeouts cancelled since the last tick, waiting to leave the wheel.
+     */
+    private final ConcurrentLinkedQueue<Timeout> cancelled = new
+        ConcurrentLinkedQueue<>();
+    /**
+     * The thread advancing the wheel.
+     */
+    private final Thread thread;
+    /**
+     * The time the timer started, which deadlines are relative to.
+     */
+    private final long start;
+    /**
+     * The number of ticks passed so far.
+     */
+    private long ticks;
+    
+    private volatile boolean running = true;
+    
+    /**
+     * Handles the exceptions thrown by tasks, which otherwise would stop
+     * nothing but the task itself.
+     */
+    public volatile java.util.function.Consumer<RuntimeException>
+            errorHandler = RuntimeException::printStackTrace;
+    
+    /**
+     * Creates and starts a timer.
+     * @param tickDuration the length of a tick. Shorter ticks are more
+     * precise but wake the timer thread more often.
+     * @param unit the unit of the tick duration.
+     * @param wheelSize the number of buckets, rounded up to a power of two.
+     * It should be around the longest timeout divided by the tick duration.
+     * @param name the name of the timer thread.
+     */
+    public HashedWheelTimer (long tickDuration, TimeUnit unit, int wheelSize,
+            String name) {
+        
+        if (tickDuration <= 0 || wheelSize <= 0) throw new
+            IllegalArgumentException("Tick duration and wheel size must be "
+                    + "positive.");
+        
+        this.tick = unit.toNanos(tickDuration);
+        
+        int size = Integer.highestOneBit(wheelSize - 1) << 1;
+        this.wheel = new Bucket[Math.max(size, 1)];
+        for (int n = 0; n < wheel.length; ++n) wheel[n] = new Bucket();
+        this.mask = wheel.length - 1;
+        
+        this.start = System.nanoTime();
+        this.thread = new Thread(this::run, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+    
+    /**
+     * Schedules a task to run once after a delay.
+     * @param task the task to run on the timer thread.
+     * @param delay the delay before the task runs.
+     * @param unit the unit of the delay.
+     * @return a handle that can cancel the task.
+     */
+    public Timeout newTimeout (Runnable task, long delay, TimeUnit unit) {
+        if (!running) throw new IllegalStateException(
+                "The timer has been closed.");
+        
+        long deadline = System.nanoTime() - start
+                + Math.max(unit.toNanos(delay), 0);
+        Timeout timeout = new Timeout(this, task, deadline);
+        scheduled.add(timeout);
+        return timeout;
+    }
+    
+    /**
+     * Advances the wheel every tick until the timer is closed.
+     */
+    private void run () {
+        while (running) {
+            long deadline = (ticks + 1) * tick;
+            long sleep = deadline - (System.nanoTime() - start);
+            
+            if (sleep > 0) {
+                java.util.concurrent.locks.LockSupport.parkNanos(this, sleep);
+                continue;
+            }
+            
+            removeCancelled();
+            transferScheduled();
+            wheel[(int)(ticks & mask)].expire(deadline);
+            ++ticks;
+        }
+    }
+    
+    /**
+     * Moves newly scheduled timeouts into their buckets.
+     */
+    private void transferScheduled () {
+        Timeout timeout;
+        while ((timeout = scheduled.poll()) != null) {
+            if (timeout.state.get() != Timeout.PENDING) continue;
+            
+            // Timeouts already due land in the current bucket.
+            long due = Math.max(timeout.deadline / tick, ticks);
+            timeout.rounds = (due - ticks) / wheel.length;
+            wheel[(int)(due & mask)].add(timeout);
+        }
+    }
+    
+    /**
+     * Unlinks cancelled timeouts from their buckets.
+     */
+    private void removeCancelled () {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.bucket != null) timeout.bucket.remove(timeout);
+        }
+    }
+    
+    /**
+     * Stops the timer. Pending tasks never run.
+     */
+    @Override
+    public void close () {
+        running = false;
+        java.util.concurrent.locks.LockSupport.unpark(thread);
+    }
+    
+    /**
+     * A handle on a scheduled task.
+     * @author willharris
+     */
+    public static final class Timeout {
+        private static final int PENDING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+        
+        private final HashedWheelTimer timer;
+        private final Runnable task;
+        /**
+         * The deadline, in nanoseconds since the timer started.
+         */
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        
+        // Wheel state, only touched by the timer thread.
+        private long rounds;
+        private Bucket bucket;
+        private Timeout prev, next;
+        
+        private Timeout (HashedWheelTimer timer, Runnable task,
+                long deadline) {
+            this.timer = timer;
+            this.task = task;
+            this.deadline = deadline;
+        }
+        
+        /**
+         * Cancels the task if it has not run yet.
+         * @return true if the task was cancelled, false if it already ran or
+         * was already cancelled.
+         */
+        public boolean cancel () {
+            if (!state.compareAndSet(PENDING, CANCELLED)) return false;
+            
+            timer.cancelled.add(this);
+            return true;
+        }
+        
+        /**
+         * Checks if this timeout was cancelled.
+         * @return true if cancelled.
+         */
+        public boolean isCancelled () {
+            return state.get() == CANCELLED;
+        }
+        
+        /**
+         * Checks if the task of this timeout has run.
+         * @return true if the task has run.
+         */
+        public boolean isExpired () {
+            return state.get() == EXPIRED;
+        }
+    }
+    
+    /**
+     * A doubly linked list of the timeouts hashed to one slot of the wheel.
+     */
+    private static final class Bucket {
+        private Timeout head, tail;
+        
+        void add (Timeout timeout) {
+            timeout.bucket = this;
+            timeout.prev = tail;
+            if (tail != null) tail.next = timeout;
+            else head = timeout;
+            tail = timeout;
+        }
+        
+        void remove (Timeout timeout) {
+            if (timeout.prev != null) timeout.prev.next = timeout.next;
+            else head = timeout.next;
+            if (timeout.next != null) timeout.next.prev = timeout.prev;
+            else tail = timeout.prev;
+            
+            timeout.prev = timeout.next = null;
+            timeout.bucket = null;
+        }
+        
+        /**
+         * Runs every timeout of this bucket that is due in the current round.
+         * @param deadline the end of the current tick.
+         */
+        void expire (long deadline) {
+            Timeout timeout = head;
+            
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                
+                if (timeout.rounds > 0) --timeout.rounds;
+                else if (timeout.deadline <= deadline) {
+                    remove(timeout);
+                    if (timeout.state.compareAndSet(Timeout.PENDING,
+                            Timeout.EXPIRED)) {
+                        try {
+                            timeout.task.run();
+                        } catch (RuntimeException e) {
+                            timeout.timer.errorHandler.accept(e);
+                        }
+                    }
+                }
+                
+                timeout = next;
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Billiam Library is a collection of packages and classes
+ * created by Will Harris.
+ */
+package billiam.sockettools;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations with a fixed relative precision. Each
+ * power of two is split into 32 linear buckets, so any recorded value is
+ * reported within about 3% of its true value, from nanoseconds up to hours,
+ * in a fixed ten kilobytes. Recording is a single atomic increment and may
+ * be done from any number of threads.
+ * @author willharris
+ */
+public final class LatencyHistogram {
+    
+    /**
+     * Bits of precision within each power of two.
+     */
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    /**
+     * The largest value tracked exactly; larger values are clamped to it.
+     */
+    private static final long MAX_VALUE = (1L << 42) - 1;
+    
+    private final AtomicLongArray counts = new AtomicLongArray(
+            index(MAX_VALUE) + 1);
+    private final java.util.concurrent.atomic.LongAdder total = new
+        java.util.concurrent.atomic.LongAdder();
+    private final java.util.concurrent.atomic.LongAdder sum = new
+        java.util.concurrent.atomic.LongAdder();
+    private final java.util.concurrent.atomic.LongAccumulator max = new
+        java.util.concurrent.atomic.LongAccumulator(Math::max, 0);
+    
+    /**
+     * Gets the bucket of a value.
+     * @param value the non-negative value.
+     * @return the index of its bucket.
+     */
+    private static int index (long value) {
+        if (value < SUB_COUNT) return (int)value;
+        
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int)(value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+    
+    /**
+     * Gets the highest value that lands in a bucket.
+     * @param index the index of the bucket.
+     * @return the bucket's upper bound.
+     */
+    private static long upperBound (int index) {
+        if (index < SUB_COUNT) return index;
+        
+        int exponent = index / SUB_COUNT + SUB_BITS - 1;
+        long sub = index % SUB_COUNT;
+        long low = (1L << exponent) | (sub << (exponent - SUB_BITS));
+        return low + (1L << (exponent - SUB_BITS)) - 1;
+    }
+    
+    /**
+     * Records a value.
+     * @param value the value, usually in nanoseconds. Negative values are
+     * recorded as 0.
+     */
+    public void record (long value) {
+        value = Math.min(Math.max(value, 0), MAX_VALUE);
+        
+        counts.incrementAndGet(index(value));
+        total.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+    
+    /**
+     * Gets the number of values recorded.
+     * @return the count.
+     */
+    public long count () {
+        return total.sum();
+    }
+    
+    /**
+     * Gets the mean of the recorded values.
+     * @return the mean, or 0 if nothing was recorded.
+     */
+    public double mean () {
+        long count = count();
+        return count == 0 ? 0 : (double)sum.sum() / count;
+    }
+    
+    /**
+     * Gets the largest recorded value.
+     * @return the maximum, or 0 if nothing was recorded.
+     */
+    public long max () {
+        return max.get();
+    }
+    
+    /**
+     * Gets the value below which the given percentage of recorded values
+     * fall.
+     * @param percentile the percentile, from 0 to 100.
+     * @return the percentile's value, or 0 if nothing was recorded.
+     */
+    public long percentile (double percentile) {
+        if (percentile < 0 || percentile > 100) throw new
+            IllegalArgumentException("Argument \"percentile\" out of range. "
+                    + "Expected 0 to 100; got " + percentile + ".");
+        
+        // Counts are read once, so concurrent recording cannot overshoot.
+        long[] snapshot = new long[counts.length()];
+        long count = 0;
+        for (int n = 0; n < snapshot.length; ++n) {
+            snapshot[n] = counts.get(n);
+            count += snapshot[n];
+        }
+        if (count == 0) return 0;
+        
+        long rank = Math.max(1, (long)Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int n = 0; n < snapshot.length; ++n) {
+            seen += snapshot[n];
+            if (seen >= rank) return Math.min(upperBound(n), max());
+        }
+        
+        return max();
+    }
+    
+    /**
+     * Clears every recorded value. Values recorded concurrently may be lost.
+     */
+    public void reset () {
+        for (int n = 0; n < counts.length(); ++n) counts.set(n, 0);
+        total.reset();
+        sum.reset();
+        max.reset();
+    }
+    
+    /**
+     * Formats a summary of the histogram, treating values as nanoseconds.
+     * @return the summary, in microseconds.
+     */
+    @Override
+    public String toString () {
+        return String.format("count=%d mean=%.1fus p50=%.1fus p90=%.1fus "
+                + "p99=%.1fus p99.9=%.1fus max=%.1fus", count(),
+                mean() / 1e3, percentile(50) / 1e3, percentile(90) / 1e3,
+                percentile(99) / 1e3, percentile(99.9) / 1e3, max() / 1e3);
+    }
+}
@@ -0,0 +1,510 @@
+/*
+ * Billiam Library is a collection of packages and classes
+ * created by Will Harris.
+ */
+package billiam.sockettools;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures how much load a {@link Server} takes, by opening many clients
+ * against it and driving a mix of MSG requests and pings through them. By
+ * default a server is started in the same process on a loopback port, and
+ * answers every MSG by echoing it, so a run needs nothing but one machine:
+ * <pre>
+ * java billiam.sockettools.LoadGenerator --clients=1000 --duration=30
+ * </pre>
+ * Every setting is a public field and may be given on the command line as
+ * {@code --name=value}. Setting {@code port} targets a server that is
+ * already running instead, which must reply to MSG requests.
+ * <p>
+ * Without a {@code rate}, each client keeps {@code window} requests in flight
+ * and sends the next as soon as one is answered, which finds the highest
+ * throughput. With a rate, requests are sent on a fixed schedule and each
+ * latency is measured from when its request was due rather than when it was
+ * sent, so a stalled server is charged for the requests it delayed.
+ * <p>
+ * Clients connect over TCP unless {@code transport} is {@code UNIX}, which
+ * uses a Unix domain socket instead, or {@code SHARED_MEMORY}, which gives
+ * each client a {@link SharedMemoryChannel} of its own. With {@code compare}
+ * set, the run is repeated over each transport and every report is printed,
+ * to show what same-host clients gain from skipping the loopback TCP stack:
+ * <pre>
+ * java billiam.sockettools.LoadGenerator --compare=true --clients=50
+ * </pre>
+ * @author willharris
+ */
+public final class LoadGenerator {
+    
+    /**
+     * The number of clients, each with a connection of its own.
+     */
+    public int clients = 100;
+    /**
+     * The seconds to measure for.
+     */
+    public int duration = 10;
+    /**
+     * The seconds to run before measuring, so the JIT and the buffer pools
+     * have settled.
+     */
+    public int warmup = 2;
+    /**
+     * The requests per second to send over all clients, or 0 to send as
+     * fast as replies arrive.
+     */
+    public int rate = 0;
+    /**
+     * The requests each client keeps in flight when no rate is set.
+     */
+    public int window = 8;
+    /**
+     * The fraction of requests that are pings rather than MSG requests.
+     */
+    public double pingRatio = 0.1;
+    /**
+     * The length of MSG bodies, in characters.
+     */
+    public int payload = 64;
+    /**
+     * The host of the server.
+     */
+    public String host = "127.0.0.1";
+    /**
+     * The port of a running server to target, or 0 to start one.
+     */
+    public int port = 0;
+    /**
+     * How the started server runs its connections.
+     */
+    public Server.ExecutionMode mode = Server.ExecutionMode.EVENT_LOOP;
+    /**
+     * The number of event loops of the started server.
+     */
+    public int loops = 1;
+    /**
+     * How clients connect to the server.
+     */
+    public Transport transport = Transport.TCP;
+    /**
+     * The socket file of a running server to target over {@code UNIX}, or
+     * null to start one.
+     */
+    public String path = null;
+    /**
+     * The way both sides of shared-memory channels wait. Spinning needs a
+     * free core for every client and its server thread.
+     */
+    public SharedMemoryChannel.WaitStrategy waitStrategy =
+            SharedMemoryChannel.WaitStrategy.PARK;
+    /**
+     * True to run once over each transport, one after the other.
+     */
+    public boolean compare = false;
+    
+    // Measurements
+    private final LatencyHistogram connectTimes = new LatencyHistogram();
+    private final LatencyHistogram messageLatency = new LatencyHistogram();
+    private final LatencyHistogram pingLatency = new LatencyHistogram();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    
+    /**
+     * True while requests should keep being sent.
+     */
+    private volatile boolean running;
+    
+    /**
+     * Runs the load generator with settings from the command line, and
+     * prints its report.
+     * @param args settings, as {@code --name=value}.
+     * @throws Exception if the run fails.
+     */
+    public static void main (String[] args) throws Exception {
+        LoadGenerator generator = parse(args);
+        if (!generator.compare) {
+            System.out.println(generator.run());
+            return;
+        }
+        
+        // Every run gets fresh measurements.
+        for (Transport transport : Transport.values()) {
+            LoadGenerator run = parse(args);
+            run.transport = transport;
+            System.out.println("transport " + transport);
+            System.out.println(run.run());
+        }
+    }
+    
+    /**
+     * Creates a load generator with settings from the command line.
+     * @param args settings, as {@code --name=value}.
+     * @return the load generator.
+     */
+    private static LoadGenerator parse (String[] args) {
+        LoadGenerator generator = new LoadGenerator();
+        
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (!arg.startsWith("--") || split < 0) throw new
+                IllegalArgumentException("Expected --name=value; got "
+                        + arg + ".");
+            generator.set(arg.substring(2, split), arg.substring(split + 1));
+        }
+        
+        return generator;
+    }
+    
+    /**
+     * Changes a setting by name.
+     * @param name the name of the setting's field.
+     * @param value the value, as text.
+     */
+    public void set (String name, String value) {
+        switch (name) {
+            case "clients": clients = Integer.parseInt(value); break;
+            case "duration": duration = Integer.parseInt(value); break;
+            case "warmup": warmup = Integer.parseInt(value); break;
+            case "rate": rate = Integer.parseInt(value); break;
+            case "window": window = Integer.parseInt(value); break;
+            case "pingRatio": pingRatio = Double.parseDouble(value); break;
+            case "payload": payload = Integer.parseInt(value); break;
+            case "host": host = value; break;
+            case "port": port = Integer.parseInt(value); break;
+            case "mode": mode = Server.ExecutionMode.valueOf(value); break;
+            case "loops": loops = Integer.parseInt(value); break;
+            case "transport": transport = Transport.valueOf(value); break;
+            case "path": path = value; break;
+            case "waitStrategy": waitStrategy = SharedMemoryChannel
+                    .WaitStrategy.valueOf(value); break;
+            case "compare": compare = Boolean.parseBoolean(value); break;
+            default: throw new IllegalArgumentException(
+                    "Unknown setting \"" + name + "\".");
+        }
+    }
+    
+    /**
+     * Connects every client, drives load through them for the warmup and
+     * the duration, and disconnects them again.
+     * @return the measurements of the run.
+     * @throws IOException if the server could not be started or a client
+     * could not connect.
+     * @throws InterruptedException if interrupted while running.
+     */
+    public Result run () throws IOException, InterruptedException {
+        Server server = null;
+        boolean unix = transport == Transport.UNIX;
+        boolean shared = transport == Transport.SHARED_MEMORY;
+        int target = port;
+        java.nio.file.Path socket = path == null ? null
+                : java.nio.file.Paths.get(path);
+        java.nio.file.Path directory = null;
+        
+        // Shared memory always needs the server in this process.
+        if (shared || (unix ? socket == null : target == 0)) {
+            server = new EchoServer(mode);
+            server.setEventLoops(loops, Server.LoopAssignment.ROUND_ROBIN);
+            
+            if (unix || shared) directory = java.nio.file.Files
+                    .createTempDirectory("billiam-load");
+            if (unix) {
+                socket = directory.resolve("load.sock");
+                server.start(socket);
+            } else {
+                server.start(0);
+                target = server.getPort();
+            }
+        }
+        
+        Client[] pool = new Client[clients];
+        String body = text(payload);
+        
+        try {
+            // Connects one at a time, so each setup is timed alone.
+            long setupStart = System.nanoTime();
+            for (int n = 0; n < clients; ++n) {
+                long start = System.nanoTime();
+                if (shared) {
+                    java.nio.file.Path ring = directory.resolve(n + ".ring");
+                    server.accept(SharedMemoryChannel.create(ring,
+                            SharedMemoryChannel.DEFAULT_CAPACITY,
+                            waitStrategy));
+                    pool[n] = new Client(ring, waitStrategy);
+                } else pool[n] = unix ? new Client(socket, 1)
+                        : new Client(host, target, 1);
+                pool[n].connect();
+                connectTimes.record(System.nanoTime() - start);
+            }
+            long setup = System.nanoTime() - setupStart;
+            
+            // Sending blocks on the socket, so the schedule is split over one
+            // driver per core.
+            running = true;
+            Thread[] drivers = new Thread[0];
+            if (rate > 0) {
+                drivers = new Thread[Math.min(clients,
+                        Runtime.getRuntime().availableProcessors())];
+                for (int n = 0; n < drivers.length; ++n) {
+                    int first = n;
+                    int stride = drivers.length;
+                    drivers[n] = new Thread(() -> driveAtRate(pool, first,
+                            stride, body), "billiam-load-driver-" + n);
+                    drivers[n].start();
+                }
+            } else {
+                for (Client client : pool)
+                    for (int n = 0; n < window; ++n) chain(client, body);
+            }
+            
+            TimeUnit.SECONDS.sleep(warmup);
+            reset();
+            long start = System.nanoTime();
+            TimeUnit.SECONDS.sleep(duration);
+            long elapsed = System.nanoTime() - start;
+            long done = completed.sum();
+            long errors = failed.sum();
+            
+            running = false;
+            for (Thread driver : drivers) driver.join();
+            
+            return new Result(clients, setup, elapsed, done, errors,
+                    connectTimes, messageLatency, pingLatency,
+                    server == null ? null : server.metrics.dump());
+        } finally {
+            running = false;
+            for (Client client : pool) if (client != null) client.close();
+            if (server != null) server.close();
+            if (directory != null) java.nio.file.Files.deleteIfExists(
+                    directory);
+        }
+    }
+    
+    /**
+     * Sends a request, and another from its reply, for as long as the run
+     * lasts. A request that fails ends the chain, so a broken connection
+     * does not spin.
+     * @param client the client to send on.
+     * @param body the body of MSG requests.
+     */
+    private void chain (Client client, String body) {
+        if (!running) return;
+        
+        send(client, body, System.nanoTime()).whenComplete(
+                (reply, error) -> {
+                    if (error == null) chain(client, body);
+                });
+    }
+    
+    /**
+     * Sends this driver's share of the requests on a fixed schedule, until
+     * the run ends.
+     * @param pool the clients of every driver.
+     * @param first the index of this driver's first client.
+     * @param stride the number of drivers; this driver sends on every
+     * stride-th client.
+     * @param body the body of MSG requests.
+     */
+    private void driveAtRate (Client[] pool, int first, int stride,
+            String body) {
+        long interval = TimeUnit.SECONDS.toNanos(1) * stride / rate;
+        long due = System.nanoTime() + interval * first / stride;
+        int client = first;
+        
+        while (running) {
+            long wait = due - System.nanoTime();
+            if (wait > 0) java.util.concurrent.locks.LockSupport.parkNanos(
+                    wait);
+            
+            send(pool[client], body, due);
+            due += interval;
+            client += stride;
+            if (client >= pool.length) client = first;
+        }
+    }
+    
+    /**
+     * Sends one request and records its latency once it is answered.
+     * @param client the client to send on.
+     * @param body the body of MSG requests.
+     * @param due the time the request was meant to be sent at.
+     * @return the future reply.
+     */
+    private CompletableFuture<Message> send (Client client, String body,
+            long due) {
+        boolean ping = java.util.concurrent.ThreadLocalRandom.current()
+                .nextDouble() < pingRatio;
+        LatencyHistogram latency = ping ? pingLatency : messageLatency;
+        
+        CompletableFuture<Message> reply;
+        try {
+            reply = ping ? client.request(Message.Deliminator.PNG, "")
+                    : client.request(Message.Deliminator.MSG, body);
+        } catch (IllegalStateException e) {
+            // The client was closed as the run ended.
+            reply = new CompletableFuture<>();
+            reply.completeExceptionally(e);
+            return reply;
+        }
+        
+        return reply.whenComplete((message, error) -> {
+            if (!running) return;
+            
+            if (error != null) failed.increment();
+            else {
+                latency.record(System.nanoTime() - due);
+                completed.increment();
+            }
+        });
+    }
+    
+    /**
+     * Discards everything measured during the warmup.
+     */
+    private void reset () {
+        messageLatency.reset();
+        pingLatency.reset();
+        completed.reset();
+        failed.reset();
+    }
+    
+    /**
+     * Creates a body of the given length.
+     * @param length the number of characters.
+     * @return the body.
+     */
+    private static String text (int length) {
+        char[] text = new char[length];
+        java.util.Arrays.fill(text, 'x');
+        return new String(text);
+    }
+    
+    /**
+     * Determines how clients connect to the server.
+     * @author willharris
+     */
+    public static enum Transport {
+        /**
+         * Connect over TCP, through the loopback interface when the server
+         * runs on the same host.
+         */
+        TCP,
+        /**
+         * Connect through a Unix domain socket, which only reaches servers
+         * on the same host.
+         */
+        UNIX,
+        /**
+         * Connect through a shared-memory channel per client, to a server
+         * in the same process.
+         */
+        SHARED_MEMORY
+    }
+    
+    /**
+     * A server that echoes every MSG request back to its sender.
+     */
+    private static final class EchoServer extends Server {
+        EchoServer (ExecutionMode mode) {
+            super(false, mode);
+            stdLog = new java.io.PrintStream(
+                    java.io.OutputStream.nullOutputStream());
+        }
+        
+        @Override
+        protected void onMessage (Connection<?> connection, Message message) {
+            if (message.deliminator != Message.Deliminator.MSG) return;
+            
+            try {
+                connection.reply(message, Message.Deliminator.MSG,
+                        message.message);
+            } catch (IOException e) {
+                debugLog("Echo failed: " + e.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * The measurements of a run.
+     * @author willharris
+     */
+    public static final class Result {
+        /**
+         * The number of clients connected.
+         */
+        public final int clients;
+        /**
+         * The time taken to connect every client, in nanoseconds.
+         */
+        public final long setupTime;
+        /**
+         * The time measured for, in nanoseconds.
+         */
+        public final long elapsed;
+        /**
+         * The requests answered while measuring.
+         */
+        public final long completed;
+        /**
+         * The requests that failed while measuring.
+         */
+        public final long failed;
+        /**
+         * The time each client took to connect, in nanoseconds.
+         */
+        public final LatencyHistogram connectTimes;
+        /**
+         * The latency of MSG requests, in nanoseconds.
+         */
+        public final LatencyHistogram messageLatency;
+        /**
+         * The latency of pings, in nanoseconds.
+         */
+        public final LatencyHistogram pingLatency;
+        /**
+         * The metrics of the started server, or null if an external server
+         * was targeted.
+         */
+        public final String serverMetrics;
+        
+        Result (int clients, long setupTime, long elapsed, long completed,
+                long failed, LatencyHistogram connectTimes,
+                LatencyHistogram messageLatency, LatencyHistogram pingLatency,
+                String serverMetrics) {
+            this.clients = clients;
+            this.setupTime = setupTime;
+            this.elapsed = elapsed;
+            this.completed = completed;
+            this.failed = failed;
+            this.connectTimes = connectTimes;
+            this.messageLatency = messageLatency;
+            this.pingLatency = pingLatency;
+            this.serverMetrics = serverMetrics;
+        }
+        
+        /**
+         * Gets the requests answered per second.
+         * @return the throughput.
+         */
+        public double throughput () {
+            return completed / (elapsed / 1e9);
+        }
+        
+        @Override
+        public String toString () {
+            StringBuilder text = new StringBuilder();
+            text.append(String.format("clients %d, connected in %.1f ms%n",
+                    clients, setupTime / 1e6));
+            text.append("connect ").append(connectTimes).append('\n');
+            text.append(String.format("requests %d ok, %d failed in %.1f s"
+                    + " = %.0f/s%n", completed, failed, elapsed / 1e9,
+                    throughput()));
+            text.append("msg.latency ").append(messageLatency).append('\n');
+            text.append("png.latency ").append(pingLatency).append('\n');
+            if (serverMetrics != null) text.append(serverMetrics);
+            return text.toString();
+        }
+    }
+}
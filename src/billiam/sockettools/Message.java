@@ -10,13 +10,30 @@ package billiam.sockettools;
  */
 public class Message implements java.io.Serializable {
     
+    /**
+     * The serial version of the class before messages carried a correlation
+     * id, so messages persisted then can still be read.
+     */
+    private static final long serialVersionUID = -6680139070936868946L;
+    
     /**
      * This constructor is internal to allow only the sendMessage() objects to
      * construct this class.
      */
     Message(Deliminator deliminator, String message) {
+        this(deliminator, message, 0);
+    }
+    
+    /**
+     * Creates a message that belongs to a request.
+     * @param deliminator the type of message.
+     * @param message the message body.
+     * @param correlationId the id of the request, or 0 for none.
+     */
+    Message(Deliminator deliminator, String message, int correlationId) {
         this.deliminator = deliminator;
         this.message = message;
+        this.correlationId = correlationId;
     }
     
     /**
@@ -27,11 +44,48 @@ public class Message implements java.io.Serializable {
      * The message body.
      */
     public final String message;
+    /**
+     * The id a {@link Client} gave the request this message is, or answers.
+     * Replies carry the id of their request, so many requests can be in
+     * flight on one connection. 0 if the message is not part of a request.
+     */
+    public final int correlationId;
+    
+    /**
+     * Writes messages for the {@link billiam.misc.Serializer}: the ordinal of
+     * the deliminator, the correlation id as a varint, then the body.
+     */
+    public static final billiam.misc.BinaryCodec<Message> CODEC = new
+        billiam.misc.BinaryCodec<Message>() {
+        
+        @Override
+        public void write (Message value, java.io.DataOutput out)
+                throws java.io.IOException {
+            out.writeByte(value.deliminator.ordinal());
+            billiam.misc.BinaryCodec.writeVarint(out, value.correlationId);
+            billiam.misc.BinaryCodec.writeString(out, value.message);
+        }
+        
+        @Override
+        public Message read (java.io.DataInput in) throws java.io.IOException {
+            int ordinal = in.readUnsignedByte();
+            Deliminator[] deliminators = Deliminator.values();
+            if (ordinal >= deliminators.length) throw new
+                java.io.StreamCorruptedException("Unknown deliminator "
+                        + ordinal + ".");
+            
+            int correlationId = billiam.misc.BinaryCodec.readVarint(in);
+            return new Message(deliminators[ordinal],
+                    billiam.misc.BinaryCodec.readString(in), correlationId);
+        }
+    };
     
     /**
      * Messages are sent to and from with three indicator characters
      * separated by a space. The three characters indicate what kind of
-     * message was sent by the client or server.
+     * message was sent by the client or server. On the wire, the
+     * {@link FrameCodec} sends the ordinal of the deliminator as the frame's
+     * opcode, so constants must never be reordered.
      * @author willharris
      */
     public static enum Deliminator {
@@ -54,6 +108,19 @@ public class Message implements java.io.Serializable {
         /**
          * An error has occurred.
          */
-        ERR
+        ERR,
+        /**
+         * Replication of a {@link ReplicatedCache}.
+         */
+        SYN,
+        /**
+         * Negotiation of protocol extensions, such as {@link Compression},
+         * when a connection opens.
+         */
+        EXT,
+        /**
+         * The start of a file sent with {@link Connection#sendFile}.
+         */
+        BLB
     }
 }
@@ -0,0 +1,487 @@
+/*
+ * Billiam Library is a collection of packages and classes
+ * created by Will Harris.
+ */
+package billiam.sockettools;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+
+/**
+ * The frames a connection still has to write. Small messages are encoded back
+ * to back into shared chunks, so a burst of them leaves the queue in a few
+ * gathering writes instead of one system call each. The queue tracks how many
+ * bytes are pending and flips its writability when they cross the high and
+ * low watermarks.
+ * <p>
+ * Any thread may add to the queue; only the owning loop writes it out. Chunks
+ * are direct buffers leased from a {@link BufferPool} and returned as soon as
+ * they have been written.
+ * <p>
+ * Control frames, such as pings and probes, have a lane of their own that is
+ * written before the bulk lane, so a heartbeat is never stuck behind a
+ * backlog of MSG data. Frames are never interleaved: a bulk buffer that is
+ * partly written is finished before any control frame goes out.
+ * <p>
+ * Files are queued as a region rather than as data. They are cut into raw
+ * frames of {@code FILE_CHUNK} bytes as they go out, each body moved from the
+ * file to the socket by {@code FileChannel.transferTo()}, so control frames
+ * still get through between chunks of a large file.
+ * @author willharris
+ */
+final class OutboundQueue {
+    
+    /**
+     * The size of a chunk small frames are coalesced into.
+     */
+    static final int CHUNK = 16 * 1024;
+    
+    /**
+     * The most buffers handed to a single gathering write.
+     */
+    private static final int MAX_GATHER = 64;
+    
+    /**
+     * The most file bytes sent in one raw frame.
+     */
+    static final int FILE_CHUNK = 64 * 1024;
+    
+    /**
+     * Control frames, which are written first.
+     */
+    private final Lane control = new Lane();
+    /**
+     * MSG, SYN and BLB frames.
+     */
+    private final Lane bulk = new Lane();
+    /**
+     * Files queued in the bulk lane, in order. Each sits in the lane as the
+     * header of its current chunk.
+     */
+    private final ArrayDeque<FileRegion> files = new ArrayDeque<>();
+    /**
+     * The pool chunks and large frames are taken from.
+     */
+    private final BufferPool pool;
+    /**
+     * Reused array for gathering writes.
+     */
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    
+    /**
+     * The number of bytes queued but not yet written.
+     */
+    private long pending;
+    /**
+     * The number of bytes written so far. Only changed by the loop.
+     */
+    private volatile long written;
+    /**
+     * Pending bytes above which the queue becomes unwritable.
+     */
+    private long highWatermark;
+    /**
+     * Pending bytes below which an unwritable queue becomes writable again.
+     */
+    private long lowWatermark;
+    /**
+     * False while the pending bytes are above the watermarks.
+     */
+    private volatile boolean writable = true;
+    /**
+     * True once the queue has been cleared for good. Anything added after
+     * that is discarded at once, so a send racing a close leaks nothing.
+     */
+    private boolean closed;
+    
+    OutboundQueue (BufferPool pool, long lowWatermark, long highWatermark) {
+        this.pool = pool;
+        setWatermarks(lowWatermark, highWatermark);
+    }
+    
+    /**
+     * Changes the watermarks of this queue.
+     * @param low the pending bytes below which the queue becomes writable.
+     * @param high the pending bytes above which the queue becomes unwritable.
+     */
+    synchronized void setWatermarks (long low, long high) {
+        if (low < 0 || high < low) throw new IllegalArgumentException(
+                "Watermarks must satisfy 0 <= low <= high; got " + low
+                + " and " + high + ".");
+        this.lowWatermark = low;
+        this.highWatermark = high;
+    }
+    
+    /**
+     * Checks if the pending bytes are below the watermarks.
+     * @return true if more data should be queued, false if the writer
+     * should hold back.
+     */
+    boolean isWritable () {
+        return writable;
+    }
+    
+    /**
+     * Gets the number of bytes waiting to be written.
+     * @return the pending byte count.
+     */
+    synchronized long pending () {
+        return pending;
+    }
+    
+    /**
+     * Gets the number of bytes written out of this queue so far.
+     * @return the total bytes written.
+     */
+    long written () {
+        return written;
+    }
+    
+    /**
+     * Checks if nothing is waiting to be written.
+     * @return true if the queue is empty.
+     */
+    synchronized boolean isEmpty () {
+        return pending == 0;
+    }
+    
+    /**
+     * Encodes a message onto the end of the queue.
+     * @param message the message to queue.
+     * @return true if this made the queue unwritable.
+     */
+    synchronized boolean add (Message message) {
+        if (closed) return false;
+        
+        int length = FrameCodec.frameLength(message);
+        Lane lane = laneOf(message.deliminator);
+        
+        // Large frames get a buffer of their own.
+        if (length > CHUNK / 2) {
+            PooledBuffer frame = pool.acquire(length);
+            FrameCodec.encode(message, frame.buffer());
+            frame.buffer().flip();
+            return append(lane, frame);
+        }
+        
+        if (lane.tail == null || lane.tail.buffer().remaining() < length) {
+            lane.seal();
+            lane.tail = pool.acquire(CHUNK);
+        }
+        
+        FrameCodec.encode(message, lane.tail.buffer());
+        return grow(length);
+    }
+    
+    /**
+     * Appends an already encoded frame, which is written without being
+     * copied.
+     * @param frame a share of the frame, starting at 0, which the queue
+     * owns and releases once it has been written or discarded.
+     * @return true if this made the queue unwritable.
+     */
+    synchronized boolean add (PooledBuffer frame) {
+        if (closed) {
+            frame.release();
+            return false;
+        }
+        
+        // A share starts at 0, so a position past 0 means partly written.
+        return append(laneOf(FrameCodec.peekType(frame.buffer())), frame);
+    }
+    
+    /**
+     * Queues a file behind the bulk data queued so far. The queue owns the
+     * file from here on and closes it once it has been written, or
+     * discarded.
+     * @param header the BLB message announcing the file.
+     * @param file the file to send, from its start.
+     * @param size the number of bytes to send, at least 1.
+     * @return true if this made the queue unwritable.
+     */
+    synchronized boolean add (Message header, FileChannel file, long size) {
+        if (closed) {
+            try {
+                file.close();
+            } catch (IOException ignored) {}
+            return false;
+        }
+        
+        boolean unwritable = add(header);
+        
+        // Counts the body now, and each chunk header as it is made.
+        FileRegion region = new FileRegion(file, size);
+        files.add(region);
+        unwritable |= append(bulk, region.header);
+        return unwritable | grow(size);
+    }
+    
+    /**
+     * Appends a buffer behind everything queued so far in a lane.
+     * @param lane the lane to append to.
+     * @param buffer the buffer, in read mode, owned by the queue.
+     * @return true if this made the queue unwritable.
+     */
+    private boolean append (Lane lane, PooledBuffer buffer) {
+        lane.seal();
+        lane.buffers.add(buffer);
+        return grow(buffer.buffer().remaining());
+    }
+    
+    /**
+     * Picks the lane frames of a type are queued in. SYN and BLB frames carry
+     * bulk data just as MSG frames do; every other type is small and urgent.
+     * @param deliminator the type of the frame.
+     * @return the lane.
+     */
+    private Lane laneOf (Message.Deliminator deliminator) {
+        switch (deliminator) {
+            case MSG:
+            case SYN:
+            case BLB:
+                return bulk;
+            default:
+                return control;
+        }
+    }
+    
+    /**
+     * Accounts for newly queued bytes.
+     * @param bytes the number of bytes queued.
+     * @return true if this made the queue unwritable.
+     */
+    private boolean grow (long bytes) {
+        pending += bytes;
+        
+        if (writable && pending > highWatermark) {
+            writable = false;
+            return true;
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Writes as much of the queue as the channel accepts, using gathering
+     * writes.
+     * @param channel the channel to write to.
+     * @return true if this made the queue writable again.
+     * @throws IOException if writing fails.
+     */
+    synchronized boolean writeTo (GatheringByteChannel channel)
+            throws IOException {
+        control.seal();
+        bulk.seal();
+        
+        while (!control.buffers.isEmpty() || !bulk.buffers.isEmpty()) {
+            int count = 0;
+            PooledBuffer head = bulk.buffers.peek();
+            FileRegion file = files.peek();
+            
+            // A file chunk whose header is out is followed by its body.
+            if (file != null && head == file.header && !head.buffer()
+                    .hasRemaining()) {
+                if (!transfer(file, channel)) break;
+                continue;
+            }
+            
+            // A partly written bulk buffer holds a partly written frame,
+            // which has to be finished first.
+            // A chunk header is finished on its own, since its body must
+            // follow it.
+            boolean started = head != null && head.buffer().position() > 0;
+            if (started) gather[count++] = head.buffer();
+            boolean header = started && file != null && head == file.header;
+            
+            for (PooledBuffer buffer : control.buffers) {
+                if (count == MAX_GATHER || header) break;
+                gather[count++] = buffer.buffer();
+            }
+            for (PooledBuffer buffer : bulk.buffers) {
+                if (count == MAX_GATHER || header) break;
+                if (buffer != head || !started) gather[count++] = buffer
+                        .buffer();
+                
+                // Nothing is gathered past a file's chunk header.
+                if (file != null && buffer == file.header) break;
+            }
+            
+            long bytes = channel.write(gather, 0, count);
+            pending -= bytes;
+            written += bytes;
+            
+            // Returns fully written buffers to the pool.
+            control.releaseWritten(null);
+            bulk.releaseWritten(file == null ? null : file.header);
+            
+            // Stops once the socket buffer is full.
+            if (gather[count - 1].hasRemaining()) break;
+        }
+        
+        java.util.Arrays.fill(gather, null);
+        
+        if (!writable && pending <= lowWatermark) {
+            writable = true;
+            return true;
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Discards everything queued, and everything added from now on.
+     */
+    synchronized void clear () {
+        closed = true;
+        while (!files.isEmpty()) files.poll().close();
+        control.clear();
+        bulk.clear();
+        pending = 0;
+    }
+    
+    /**
+     * Writes the rest of the current chunk of a file, whose header has been
+     * written, and prepares the header of the next one.
+     * @param file the file at the head of the bulk lane.
+     * @param channel the channel to write to.
+     * @return true if the chunk was finished, false if the socket buffer
+     * filled up first.
+     * @throws IOException if writing fails, or the file was truncated.
+     */
+    private boolean transfer (FileRegion file, GatheringByteChannel channel)
+            throws IOException {
+        long sent = file.channel.transferTo(file.position, file.chunkEnd
+                - file.position, channel);
+        file.position += sent;
+        pending -= sent;
+        written += sent;
+        
+        if (file.position < file.chunkEnd) {
+            if (sent == 0 && file.channel.size() <= file.position) throw new
+                IOException("File was truncated while being sent.");
+            return false;
+        }
+        
+        if (file.position < file.end) grow(file.nextChunk());
+        else {
+            files.poll();
+            bulk.buffers.poll();
+            file.close();
+        }
+        return true;
+    }
+    
+    /**
+     * The buffers of one priority, in the order they were queued. Guarded by
+     * the queue's lock.
+     */
+    private static final class Lane {
+        
+        /**
+         * Buffers ready to be written, in order. Each is in read mode.
+         */
+        final ArrayDeque<PooledBuffer> buffers = new ArrayDeque<>();
+        /**
+         * The chunk frames are currently appended to, in write mode, or
+         * null.
+         */
+        PooledBuffer tail;
+        
+        /**
+         * Moves the tail chunk, if it holds anything, into the buffer list.
+         */
+        void seal () {
+            if (tail == null) return;
+            
+            if (tail.buffer().position() > 0) {
+                tail.buffer().flip();
+                buffers.add(tail);
+            } else tail.release();
+            
+            tail = null;
+        }
+        
+        /**
+         * Returns the fully written buffers at the head to the pool.
+         * @param stop a buffer to keep even once written, or null.
+         */
+        void releaseWritten (PooledBuffer stop) {
+            while (!buffers.isEmpty() && buffers.peek() != stop
+                    && !buffers.peek().buffer().hasRemaining())
+                buffers.poll().release();
+        }
+        
+        /**
+         * Discards every buffer.
+         */
+        void clear () {
+            seal();
+            while (!buffers.isEmpty()) buffers.poll().release();
+        }
+    }
+    
+    /**
+     * A file in the bulk lane, which is written one raw frame at a time.
+     * Guarded by the queue's lock.
+     */
+    private static final class FileRegion {
+        
+        /**
+         * The file being sent.
+         */
+        final FileChannel channel;
+        /**
+         * The header of the current chunk, in read mode. Stands in for the
+         * file in the bulk lane.
+         */
+        final PooledBuffer header = PooledBuffer.wrap(ByteBuffer.allocate(
+                FrameCodec.MAX_HEADER));
+        /**
+         * The position of the next byte to send.
+         */
+        long position;
+        /**
+         * The position the current chunk ends at.
+         */
+        long chunkEnd;
+        /**
+         * The position the file ends at.
+         */
+        final long end;
+        
+        FileRegion (FileChannel channel, long size) {
+            this.channel = channel;
+            this.end = size;
+            nextChunk();
+        }
+        
+        /**
+         * Encodes the header of the chunk starting at the current position.
+         * @return the length of the header.
+         */
+        int nextChunk () {
+            int length = (int)Math.min(FILE_CHUNK, end - position);
+            chunkEnd = position + length;
+            
+            ByteBuffer out = header.buffer();
+            out.clear();
+            FrameCodec.putRawHeader(out, Message.Deliminator.BLB, length);
+            out.flip();
+            return out.limit();
+        }
+        
+        /**
+         * Closes the file, which has been sent or discarded.
+         */
+        void close () {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing more is read from it either way.
+            }
+        }
+    }
+}
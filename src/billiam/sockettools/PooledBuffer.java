@@ -0,0 +1,131 @@
+/*
+ * Billiam Library is a collection of packages and classes
+ * created by Will Harris.
+ */
+package billiam.sockettools;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A lease on a buffer from a {@link BufferPool}. The buffer must not be used
+ * after the lease is released.
+ * <p>
+ * A lease can be shared with other holders, such as the outbound queues of
+ * every receiver of a broadcast. Each share is released on its own, and the
+ * buffer only returns to the pool once the lease and all its shares are.
+ * @author willharris
+ */
+public final class PooledBuffer implements AutoCloseable {
+    
+    /**
+     * The pool the buffer is returned to, or null if it is not pooled.
+     */
+    private final BufferPool pool;
+    /**
+     * The leased buffer.
+     */
+    private final ByteBuffer buffer;
+    /**
+     * The size class of the buffer, or -1 if it is not kept by the pool.
+     */
+    private final int sizeClass;
+    /**
+     * Set once the lease is released. Shared with the leak record.
+     */
+    final AtomicBoolean released = new AtomicBoolean();
+    /**
+     * The leak tracking registration, or null if this lease is not sampled.
+     */
+    private java.lang.ref.Cleaner.Cleanable tracker;
+    /**
+     * The lease and shares of the buffer not yet released. Only used on the
+     * lease itself.
+     */
+    private final AtomicInteger references = new AtomicInteger(1);
+    /**
+     * The lease this is a share of, or null if this is the lease.
+     */
+    private final PooledBuffer owner;
+    
+    PooledBuffer (BufferPool pool, ByteBuffer buffer, int sizeClass) {
+        this.pool = pool;
+        this.buffer = buffer;
+        this.sizeClass = sizeClass;
+        this.owner = null;
+    }
+    
+    private PooledBuffer (PooledBuffer owner, ByteBuffer view) {
+        this.pool = null;
+        this.buffer = view;
+        this.sizeClass = -1;
+        this.owner = owner;
+    }
+    
+    /**
+     * Wraps a buffer that does not belong to any pool, so it can be handled
+     * like a pooled one. Releasing the lease does nothing to the buffer.
+     * @param buffer the buffer to wrap.
+     * @return a lease on the buffer.
+     */
+    public static PooledBuffer wrap (ByteBuffer buffer) {
+        return new PooledBuffer(null, buffer, -1);
+    }
+    
+    /**
+     * Registers this lease for leak tracking.
+     * @param tracker the registration with the pool's cleaner.
+     */
+    void track (java.lang.ref.Cleaner.Cleanable tracker) {
+        this.tracker = tracker;
+    }
+    
+    /**
+     * Gets the leased buffer.
+     * @return the buffer.
+     * @throws IllegalStateException if the lease was released.
+     */
+    public ByteBuffer buffer () {
+        if (released.get()) throw new IllegalStateException(
+                "The buffer was already released.");
+        return buffer;
+    }
+    
+    /**
+     * Shares the bytes between the buffer's position and limit. The share
+     * has a view of its own, starting at 0, so its holder may read it
+     * without disturbing anyone else; nobody may write to the bytes while
+     * they are shared.
+     * @return the share, which must be released once no longer used.
+     * @throws IllegalStateException if this was already released.
+     */
+    public PooledBuffer share () {
+        ByteBuffer view = buffer().slice();
+        PooledBuffer lease = owner == null ? this : owner;
+        lease.references.incrementAndGet();
+        return new PooledBuffer(lease, view);
+    }
+    
+    /**
+     * Releases this lease or share, and returns the buffer to its pool once
+     * nothing else holds it.
+     * @throws IllegalStateException if this was already released.
+     */
+    public void release () {
+        if (!released.compareAndSet(false, true)) throw new
+            IllegalStateException("The buffer was already released.");
+        
+        PooledBuffer lease = owner == null ? this : owner;
+        if (lease.references.decrementAndGet() > 0) return;
+        
+        if (lease.tracker != null) lease.tracker.clean();
+        if (lease.pool != null) lease.pool.release(lease.buffer,
+                lease.sizeClass);
+    }
+    
+    @Override
+    public void close () {
+        release();
+    }
+}
@@ -0,0 +1,551 @@
+/*
+ * Billiam Library is a collection of packages and classes
+ * created by Will Harris.
+ */
+package billiam.sockettools;
+
+import java.net.ProtocolException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A thread-safe cache that one side of a connection, the leader, mirrors to
+ * the other side, a replica, by sending only what changed. Every change to
+ * the leader increases its version. Changes are collected until
+ * {@code delta()} is called, which turns them into a single SYN message in
+ * which each changed key appears once, however often it changed. The
+ * replica hands every SYN message it receives to {@code receive()}.
+ * <p>
+ * Each delta names the version it builds on and carries a checksum of the
+ * leader's whole content. A replica that has missed a delta, or whose
+ * content no longer matches the checksum, answers with a resync request,
+ * which the leader answers in turn with a full snapshot. {@code check()}
+ * sends the checksum alone, and can be sent periodically to catch drift
+ * while nothing changes. A typical leader sends
+ * <pre>
+ * Message delta = cache.delta();
+ * if (delta != null) server.broadcast(delta, replicas, policy);
+ * </pre>
+ * and both sides pass on their SYN messages with
+ * <pre>
+ * Message reply = cache.receive(message);
+ * if (reply != null) connection.send(reply);
+ * </pre>
+ * Replicas should not be changed directly; such changes are reported as
+ * drift and overwritten.
+ * @param <V> the type of values.
+ * @author willharris
+ */
+public class ReplicatedCache<V> extends Cache {
+    
+    private static final long serialVersionUID = 1L;
+    
+    /**
+     * Encodes String values as themselves.
+     */
+    public static final Codec<String> STRING_CODEC = new StringCodec();
+    
+    /**
+     * The entries of this cache, by key.
+     */
+    private final HashMap<String, Entry<V>> map = new HashMap<>();
+    /**
+     * Turns values into text for the wire, and back.
+     */
+    private final Codec<V> codec;
+    
+    /**
+     * The number of changes made to this cache.
+     */
+    private long version;
+    /**
+     * The version the last delta brought replicas to.
+     */
+    private long shipped;
+    /**
+     * The sum of the hashes of every entry. Being a sum, it does not depend
+     * on the order entries were added in, and is kept up to date as they
+     * change.
+     */
+    private long checksum;
+    
+    /**
+     * The encoded value of every key changed since the last delta, or null
+     * for removed keys.
+     */
+    private final LinkedHashMap<String, String> changes = new
+        LinkedHashMap<>();
+    /**
+     * True if the cache was cleared since the last delta.
+     */
+    private boolean cleared;
+    
+    // Statistics
+    private long resyncs;
+    
+    /**
+     * Creates an empty cache at version 0.
+     * @param codec turns values into text for the wire, and back.
+     */
+    public ReplicatedCache (Codec<V> codec) {
+        this.codec = codec;
+    }
+    
+    /**
+     * Gets the value mapped to a key.
+     * @param key the key to look up.
+     * @return the value, or null if the key is absent.
+     */
+    public synchronized V get (String key) {
+        Entry<V> entry = map.get(key);
+        return entry == null ? null : entry.value;
+    }
+    
+    /**
+     * Maps a key to a value.
+     * @param key the key of the entry.
+     * @param value the value, which must not be null.
+     * @return the value previously mapped to the key, or null.
+     */
+    public synchronized V put (String key, V value) {
+        if (value == null) throw new NullPointerException(
+                "Replicated values must not be null.");
+        
+        String encoded = codec.encode(value);
+        changes.put(key, encoded);
+        ++version;
+        return store(key, value, encoded);
+    }
+    
+    /**
+     * Removes a key.
+     * @param key the key to remove.
+     * @return the value that was mapped to the key, or null.
+     */
+    public synchronized V remove (String key) {
+        if (!map.containsKey(key)) return null;
+        
+        changes.put(key, null);
+        ++version;
+        return discard(key);
+    }
+    
+    /**
+     * Removes every entry.
+     */
+    public synchronized void clear () {
+        changes.clear();
+        cleared = true;
+        ++version;
+        map.clear();
+        checksum = 0;
+    }
+    
+    /**
+     * Checks if a key is mapped to a value.
+     * @param key the key to look up.
+     * @return true if the key has a value.
+     */
+    public synchronized boolean containsKey (String key) {
+        return map.containsKey(key);
+    }
+    
+    /**
+     * Gets the number of entries.
+     * @return the entry count.
+     */
+    public synchronized int size () {
+        return map.size();
+    }
+    
+    /**
+     * Gets the number of changes this cache has seen, which on a replica is
+     * the version of the leader it last caught up with.
+     * @return the version.
+     */
+    public synchronized long version () {
+        return version;
+    }
+    
+    /**
+     * Gets the checksum of the content of this cache, which is equal on a
+     * leader and its replicas when they are in sync.
+     * @return the checksum.
+     */
+    public synchronized long checksum () {
+        return checksum;
+    }
+    
+    /**
+     * Gets the number of resyncs this replica has asked for, or this leader
+     * has answered.
+     * @return the resync count.
+     */
+    public synchronized long resyncs () {
+        return resyncs;
+    }
+    
+    /**
+     * Checks if this leader has changes no delta has carried yet.
+     * @return true if {@code delta()} would return a message.
+     */
+    public synchronized boolean hasChanges () {
+        return cleared || !changes.isEmpty();
+    }
+    
+    /**
+     * Collects every change since the last delta into a message for the
+     * replicas, and starts collecting anew.
+     * @return the SYN message carrying the changes, or null if nothing
+     * changed.
+     */
+    public synchronized Message delta () {
+        if (!hasChanges()) return null;
+        
+        StringBuilder body = new StringBuilder();
+        body.append(DELTA).append(shipped).append(' ').append(version)
+                .append(' ').append(Long.toHexString(checksum)).append('\n');
+        
+        if (cleared) body.append(CLEAR);
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            if (change.getValue() == null) {
+                body.append(REMOVE);
+                appendString(body, change.getKey());
+            } else {
+                body.append(PUT);
+                appendString(body, change.getKey());
+                appendString(body, change.getValue());
+            }
+        }
+        
+        changes.clear();
+        cleared = false;
+        shipped = version;
+        return new Message(Message.Deliminator.SYN, body.toString());
+    }
+    
+    /**
+     * Creates a message with the whole content of this cache, which brings
+     * a replica in sync whatever state it was in.
+     * @return the SYN message carrying the snapshot.
+     */
+    public synchronized Message snapshot () {
+        StringBuilder body = new StringBuilder();
+        body.append(SNAPSHOT).append(version).append(' ')
+                .append(Long.toHexString(checksum)).append('\n');
+        
+        for (Map.Entry<String, Entry<V>> entry : map.entrySet()) {
+            body.append(PUT);
+            appendString(body, entry.getKey());
+            appendString(body, entry.getValue().encoded);
+        }
+        
+        return new Message(Message.Deliminator.SYN, body.toString());
+    }
+    
+    /**
+     * Creates a message with only the version and checksum of this cache,
+     * which lets replicas detect drift while nothing changes. The version is
+     * that of the last delta, so changes not yet shipped do not count as
+     * drift.
+     * @return the SYN message carrying the checksum, or null if changes are
+     * waiting for a delta, which carries the checksum anyway.
+     */
+    public synchronized Message check () {
+        if (hasChanges()) return null;
+        
+        return new Message(Message.Deliminator.SYN, String.valueOf(CHECK)
+                + version + " " + Long.toHexString(checksum));
+    }
+    
+    /**
+     * Handles a SYN message from the other side. A replica applies deltas
+     * and snapshots, and asks for a snapshot if it finds itself out of sync.
+     * A leader answers requests for a snapshot.
+     * @param message the received message. Messages other than SYN are
+     * ignored.
+     * @return the message to send back, or null if none is needed.
+     * @throws ProtocolException if the message is malformed.
+     */
+    public synchronized Message receive (Message message)
+            throws ProtocolException {
+        if (message.deliminator != Message.Deliminator.SYN
+                || message.message.isEmpty()) return null;
+        
+        Reader in = new Reader(message.message);
+        switch (in.next()) {
+            case DELTA: {
+                long base = in.number(' ');
+                long target = in.number(' ');
+                long expected = in.hex('\n');
+                
+                // Deltas up to the current version were already applied, or
+                // were part of the snapshot that replaced them; re-applying
+                // one is harmless, as it holds the final value of each key.
+                if (target <= version) return null;
+                if (base > version) return resync();
+                
+                applyOperations(in);
+                version = target;
+                return checksum == expected ? null : resync();
+            }
+            case SNAPSHOT: {
+                long target = in.number(' ');
+                long expected = in.hex('\n');
+                
+                map.clear();
+                checksum = 0;
+                applyOperations(in);
+                version = target;
+                return checksum == expected ? null : resync();
+            }
+            case CHECK: {
+                long target = in.number(' ');
+                long expected = in.hex((char)0);
+                
+                return target == version && checksum == expected ? null
+                        : resync();
+            }
+            case RESYNC:
+                ++resyncs;
+                return snapshot();
+            default:
+                throw new ProtocolException("Unknown replication message.");
+        }
+    }
+    
+    /**
+     * Asks the leader for a snapshot.
+     * @return the SYN message requesting it.
+     */
+    private Message resync () {
+        ++resyncs;
+        return new Message(Message.Deliminator.SYN, String.valueOf(RESYNC));
+    }
+    
+    /**
+     * Applies the changes listed in a delta or snapshot.
+     * @param in the reader positioned at the first change.
+     * @throws ProtocolException if a change is malformed.
+     */
+    private void applyOperations (Reader in) throws ProtocolException {
+        while (in.hasNext()) {
+            switch (in.next()) {
+                case PUT: {
+                    String key = in.string();
+                    String encoded = in.string();
+                    store(key, codec.decode(encoded), encoded);
+                    break;
+                }
+                case REMOVE:
+                    discard(in.string());
+                    break;
+                case CLEAR:
+                    map.clear();
+                    checksum = 0;
+                    break;
+                default:
+                    throw new ProtocolException("Unknown replication "
+                            + "operation.");
+            }
+        }
+    }
+    
+    /**
+     * Stores an entry and updates the checksum.
+     * @param key the key of the entry.
+     * @param value the value of the entry.
+     * @param encoded the value as text.
+     * @return the value previously mapped to the key, or null.
+     */
+    private V store (String key, V value, String encoded) {
+        Entry<V> entry = new Entry<>(value, encoded, hash(key, encoded));
+        Entry<V> old = map.put(key, entry);
+        
+        checksum += entry.hash;
+        if (old == null) return null;
+        
+        checksum -= old.hash;
+        return old.value;
+    }
+    
+    /**
+     * Removes an entry and updates the checksum.
+     * @param key the key of the entry.
+     * @return the value that was mapped to the key, or null.
+     */
+    private V discard (String key) {
+        Entry<V> old = map.remove(key);
+        if (old == null) return null;
+        
+        checksum -= old.hash;
+        return old.value;
+    }
+    
+    /**
+     * Hashes an entry into 64 well mixed bits, so that the sum of the hashes
+     * changes with practically any change of content.
+     * @param key the key of the entry.
+     * @param encoded the value of the entry as text.
+     * @return the hash of the entry.
+     */
+    private static long hash (String key, String encoded) {
+        long h = ((long)key.hashCode() << 32) ^ (encoded.hashCode()
+                & 0xFFFFFFFFL) ^ ((long)encoded.length() << 11);
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        return h ^ (h >>> 33);
+    }
+    
+    /**
+     * Appends a string prefixed by its length, so that it may contain any
+     * character.
+     * @param body the message being built.
+     * @param text the string to append.
+     */
+    private static void appendString (StringBuilder body, String text) {
+        body.append(text.length()).append(':').append(text);
+    }
+    
+    /**
+     * Removes every entry.
+     */
+    @Override
+    public void close () {
+        clear();
+    }
+    
+    @Override
+    public synchronized String toString () {
+        return "ReplicatedCache[size=" + map.size() + ", version=" + version
+                + ", checksum=" + Long.toHexString(checksum) + "]";
+    }
+    
+    // Kinds of replication messages.
+    private static final char DELTA = 'D';
+    private static final char SNAPSHOT = 'S';
+    private static final char CHECK = 'K';
+    private static final char RESYNC = 'R';
+    
+    // Operations within deltas and snapshots.
+    private static final char PUT = '+';
+    private static final char REMOVE = '-';
+    private static final char CLEAR = '!';
+    
+    /**
+     * Turns the values of a cache into text and back.
+     * @param <V> the type of values.
+     */
+    public static interface Codec<V> extends java.io.Serializable {
+        /**
+         * Encodes a value.
+         * @param value the value to encode.
+         * @return the value as text.
+         */
+        public String encode (V value);
+        
+        /**
+         * Decodes a value.
+         * @param text the text produced by {@code encode()}.
+         * @return the value.
+         */
+        public V decode (String text);
+    }
+    
+    private static final class StringCodec implements Codec<String> {
+        private static final long serialVersionUID = 1L;
+        
+        @Override
+        public String encode (String value) {
+            return value;
+        }
+        
+        @Override
+        public String decode (String text) {
+            return text;
+        }
+    }
+    
+    /**
+     * A value with its encoding and hash.
+     */
+    private static final class Entry<V> implements java.io.Serializable {
+        private static final long serialVersionUID = 1L;
+        
+        final V value;
+        final String encoded;
+        final long hash;
+        
+        Entry (V value, String encoded, long hash) {
+            this.value = value;
+            this.encoded = encoded;
+            this.hash = hash;
+        }
+    }
+    
+    /**
+     * Reads the fields of a replication message.
+     */
+    private static final class Reader {
+        private final String text;
+        private int position;
+        
+        Reader (String text) {
+            this.text = text;
+        }
+        
+        boolean hasNext () {
+            return position < text.length();
+        }
+        
+        char next () throws ProtocolException {
+            if (!hasNext()) throw new ProtocolException(
+                    "Replication message ends early.");
+            return text.charAt(position++);
+        }
+        
+        /**
+         * Reads the text up to a terminator, or to the end if the terminator
+         * is 0, and skips the terminator.
+         */
+        private String until (char terminator) throws ProtocolException {
+            int end = terminator == 0 ? text.length() : text.indexOf(
+                    terminator, position);
+            if (end < 0) throw new ProtocolException(
+                    "Replication message ends early.");
+            
+            String field = text.substring(position, end);
+            position = Math.min(end + 1, text.length());
+            return field;
+        }
+        
+        long number (char terminator) throws ProtocolException {
+            try {
+                return Long.parseLong(until(terminator));
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Malformed replication number.");
+            }
+        }
+        
+        long hex (char terminator) throws ProtocolException {
+            try {
+                return Long.parseUnsignedLong(until(terminator), 16);
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Malformed replication checksum.");
+            }
+        }
+        
+        String string () throws ProtocolException {
+            int length = (int)number(':');
+            if (length < 0 || position + length > text.length()) throw new
+                ProtocolException("Replication string ends early.");
+            
+            String field = text.substring(position, position + length);
+            position += length;
+            return field;
+        }
+    }
+}
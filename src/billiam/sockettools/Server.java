@@ -4,26 +4,73 @@
  */
 package billiam.sockettools;
 
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.io.IOException;
 import java.io.PrintStream;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 
 
 /**
  * Inherit this class to allow implementation of a Server.
+ * <p>
+ * A started server runs a single non-blocking event loop thread that accepts
+ * clients and performs all socket reads and writes, so the number of threads
+ * does not grow with the number of connections. Subclasses react to clients
+ * by overriding {@code onConnect()}, {@code onMessage()} and
+ * {@code onDisconnect()}, which are all called on the loop thread and must
+ * therefore not block.
+ * <p>
+ * On machines with many cores, {@code setEventLoops()} splits the work over
+ * several worker loops, with one more loop accepting clients and handing
+ * each to a worker. A connection stays on its worker for its whole life, so
+ * its callbacks still never run concurrently with each other.
+ * <p>
+ * Clients on the same host may connect through a Unix domain socket instead
+ * of TCP, by starting the server with a path rather than a port. Messages
+ * and connections behave the same either way, but each message skips the
+ * loopback TCP stack.
  * @version 1.0
  * @author willharris
  */
 public class Server implements java.io.Closeable {
     /**
-     * The ServerSocket instance the server is based around.
+     * The ServerSocketChannel instance the server is based around.
      */
-    private ServerSocket serverSocket;
+    private ServerSocketChannel serverChannel;
+    /**
+     * The address the server is bound to, or null while it is closed.
+     */
+    private volatile java.net.SocketAddress address;
+    
+    /**
+     * The event loops serving the connections of this server.
+     */
+    private EventLoop[] loops;
+    /**
+     * The event loop accepting clients, which is the only worker loop if
+     * there is one.
+     */
+    private EventLoop acceptorLoop;
+    
+    // Event loop settings
+    private int loopCount = 1;
+    private LoopAssignment loopAssignment = LoopAssignment.ROUND_ROBIN;
+    /**
+     * The next loop to hand a connection to, when assigning round-robin.
+     */
+    private int nextLoop;
+    
+    /**
+     * The open connections, sharded by event loop.
+     */
+    private final ConnectionRegistry connections = new ConnectionRegistry(
+            Runtime.getRuntime().availableProcessors());
     
-    private final CopyOnWriteArrayList<Connection> connections = new
-        CopyOnWriteArrayList<>();
+    /**
+     * The load figures of this server.
+     */
+    public final ServerMetrics metrics = new ServerMetrics(this);
     
     // Additional settings
     /**
@@ -31,6 +78,11 @@ public class Server implements java.io.Closeable {
      */
     public final boolean debugMode;
     
+    /**
+     * Determines how this server runs the code serving its connections.
+     */
+    public final ExecutionMode executionMode;
+    
     /**
      * The standard information stream.
      */
@@ -64,25 +116,1045 @@ public class Server implements java.io.Closeable {
     }
     
     public Server (boolean debugMode) {
+        this(debugMode, ExecutionMode.EVENT_LOOP);
+    }
+    
+    /**
+     * Creates a server with the given execution mode.
+     * @param debugMode true to log additional debugging information.
+     * @param executionMode how connections are served once started.
+     */
+    public Server (boolean debugMode, ExecutionMode executionMode) {
         this.debugMode = debugMode;
+        this.executionMode = executionMode;
+    }
+    
+    /**
+     * Creates the Connection object for a newly accepted channel. Override
+     * this to attach a custom cache or a Connection subclass.
+     * @param channel the accepted channel, non-blocking in
+     * {@code EVENT_LOOP} mode and blocking otherwise.
+     * @return the connection wrapping the channel.
+     * @throws IOException if the connection could not be created.
+     */
+    protected Connection<?> createConnection (SocketChannel channel)
+            throws IOException {
+        return new Connection<>(channel, null);
+    }
+    
+    /**
+     * Creates the Connection object for a client connected through a
+     * shared-memory channel. Override this along with the socket variant to
+     * attach a custom cache or a Connection subclass.
+     * @param channel the channel, which blocks.
+     * @return the connection wrapping the channel.
+     * @throws IOException if the connection could not be created.
+     */
+    protected Connection<?> createConnection (SharedMemoryChannel channel)
+            throws IOException {
+        return new Connection<>(channel, null);
+    }
+    
+    /**
+     * Serves a connection on its own thread in
+     * {@code VIRTUAL_THREAD_PER_CONNECTION} mode, and every connection through
+     * a {@link SharedMemoryChannel}. The default implementation
+     * reads messages until the connection closes and hands each of them to
+     * {@code onMessage()}. Override this to read {@code connection.in}
+     * directly instead; the connection is closed once this method returns.
+     * @param connection the connection to serve.
+     */
+    protected void serve (Connection<?> connection) {
+        while (!connection.isClosed()) connection.read();
+    }
+    
+    /**
+     * Called on the loop thread once a client has connected.
+     * @param connection the new connection.
+     */
+    protected void onConnect (Connection<?> connection) {}
+    
+    /**
+     * Called on the loop thread for every message received from a client.
+     * Disconnection requests close the connection after this method returns,
+     * and pings are answered automatically. Requests from a {@link Client}
+     * carry a correlation id and should be answered with
+     * {@code connection.reply()}.
+     * @param connection the connection the message arrived on.
+     * @param message the received message.
+     */
+    protected void onMessage (Connection<?> connection, Message message) {}
+    
+    /**
+     * Called on the loop thread when a connection's outbound queue crosses
+     * its high watermark, and again when it drains below its low watermark.
+     * Senders that produce data faster than a client reads it should pause
+     * while the connection is not writable.
+     * @param connection the connection whose writability changed.
+     * @param writable the new writability of the connection.
+     */
+    protected void onWritabilityChanged (Connection<?> connection,
+            boolean writable) {}
+    
+    /**
+     * Called on the loop thread when a client starts sending a file with
+     * {@code sendFile()}. The file's content is written to the returned
+     * channel at its position, straight from the read buffers. The name comes
+     * from the client, and must not be trusted as a path.
+     * @param connection the connection the file arrives on.
+     * @param name the name the client gave the file.
+     * @param size the size of the file, in bytes.
+     * @return the channel to write the file to, or null to discard it.
+     * @throws IOException if the channel could not be opened, which closes
+     * the connection.
+     */
+    protected java.nio.channels.FileChannel onFileOffered (
+            Connection<?> connection, String name, long size)
+            throws IOException {
+        return null;
+    }
+    
+    /**
+     * Called on the loop thread once a file has been received completely.
+     * Closes the channel by default; the channel is not closed otherwise.
+     * Files cut short by a disconnection are closed without this call.
+     * @param connection the connection the file arrived on.
+     * @param name the name the client gave the file.
+     * @param file the channel returned by {@code onFileOffered()}.
+     * @throws IOException if handling the file fails, which closes the
+     * connection.
+     */
+    protected void onFileReceived (Connection<?> connection, String name,
+            java.nio.channels.FileChannel file) throws IOException {
+        file.close();
+    }
+    
+    /**
+     * Called once a connection has been closed, by either side.
+     * @param connection the closed connection.
+     */
+    protected void onDisconnect (Connection<?> connection) {}
+    
+    /**
+     * Registers a freshly accepted connection.
+     * @param connection the accepted connection.
+     */
+    void connected (Connection<?> connection) {
+        connections.add(connection, connection.loop == null ? -1
+                : connection.loop.index);
+        debugLog("Client connected. " + connections.size() + " open.");
+        
+        HashedWheelTimer heartbeat = timer;
+        if (heartbeat != null && firstLivenessCheck() != Long.MAX_VALUE)
+            scheduleLiveness(heartbeat, connection, firstLivenessCheck());
+        
+        if (connectionRate > 0) connection.admission = new TokenBucket(
+                connectionRate, connectionBurst);
+        
+        onConnect(connection);
+    }
+    
+    /**
+     * Handles a message that arrived on a connection.
+     * @param connection the connection the message arrived on.
+     * @param message the received message.
+     * @throws IOException if a reply could not be sent.
+     */
+    void receive (Connection<?> connection, Message message)
+            throws IOException {
+        connection.metrics.addFrameIn(message.deliminator);
+        metrics.addFrameIn(message.deliminator);
+        
+        onMessage(connection, message);
+        
+        switch (message.deliminator) {
+            case DSC:
+                connection.closeNow();
+                break;
+            case PNG:
+                // A reply to the server's own ping ends there.
+                if (message.message.equals(connection.pingToken)) {
+                    long rtt = System.nanoTime() - connection.lastPing;
+                    connection.pingToken = null;
+                    connection.metrics.setLastPingRtt(rtt);
+                    metrics.pingRtt.record(rtt);
+                }
+                else connection.send(message);
+                break;
+            case YST:
+                if (message.message.equals(PROBE))
+                    connection.reply(message, Message.Deliminator.YST, "");
+                break;
+            case EXT:
+                negotiate(connection, message);
+                break;
+            default:
+                break;
+        }
+    }
+    
+    /**
+     * Applies the rate limits to the frame at the buffer's position before it
+     * is decoded. Only MSG frames and file announcements are limited, so
+     * heartbeats and other control frames always get through; the raw
+     * frames of a file ride on its announcement. A refused frame is dropped
+     * and answered with an ERR, makes the connection pause reading, or
+     * closes the connection, as the overload policy says. A dropped
+     * announcement drops the whole file.
+     * Frames are admitted as soon as their header has arrived, so the body
+     * of a dropped frame is skipped rather than buffered. File announcements
+     * are only admitted whole.
+     * @param connection the connection the frame arrived on.
+     * @param in the buffer positioned at the frame's complete header.
+     * @param frame the length of the frame.
+     * @return true if the frame may be decoded. If false, the frame is
+     * either being discarded, or left in place while reading is paused.
+     * @throws IOException if an ERR could not be sent.
+     */
+    boolean admit (Connection<?> connection, java.nio.ByteBuffer in, int frame)
+            throws IOException {
+        TokenBucket own = connection.admission;
+        TokenBucket global = globalAdmission;
+        
+        if (own == null && global == null) return true;
+        int type = in.get(in.position()) & FrameCodec.TYPE_MASK;
+        if (type != Message.Deliminator.MSG.ordinal()
+                && type != Message.Deliminator.BLB.ordinal()) return true;
+        
+        long wait;
+        while (true) {
+            wait = own == null ? 0 : own.tryAcquire();
+            if (wait == 0 && global != null) {
+                wait = global.tryAcquire();
+                if (wait > 0 && own != null) own.refund();
+            }
+            if (wait == 0) return true;
+            
+            // Blocking connections simply wait on their own thread.
+            if (overloadPolicy != OverloadPolicy.PAUSE
+                    || connection.loop != null) break;
+            metrics.addReadPause();
+            java.util.concurrent.locks.LockSupport.parkNanos(wait);
+        }
+        
+        switch (overloadPolicy) {
+            case PAUSE:
+                metrics.addReadPause();
+                connection.pauseReads(wait);
+                return false;
+            case CLOSE:
+                debugLog("Disconnecting client over its rate limit.");
+                metrics.addShed(frame);
+                metrics.addOverloadClose();
+                connection.sendMessage(Message.Deliminator.ERR,
+                        "Rate limit exceeded.");
+                if (connection.loop != null) connection.flush();
+                connection.closeNow();
+                return false;
+            default:
+                int id = FrameCodec.peekCorrelationId(in);
+                connection.discard(in, frame);
+                metrics.addShed(frame);
+                connection.send(new Message(Message.Deliminator.ERR,
+                        "Rate limit exceeded.", id));
+                return false;
+        }
+    }
+    
+    /**
+     * Resumes reading a paused connection on its loop after a delay, or at
+     * once if there is no timer to wait with, such as while closing.
+     * @param connection the paused connection.
+     * @param nanos the delay.
+     */
+    void resumeLater (Connection<?> connection, long nanos) {
+        HashedWheelTimer resume = timer;
+        if (resume != null) {
+            // The timer may have been closed since it was read.
+            try {
+                resume.newTimeout(() -> connection.loop.execute(
+                        connection::resumeReads), nanos,
+                        java.util.concurrent.TimeUnit.NANOSECONDS);
+                return;
+            } catch (IllegalStateException e) {}
+        }
+        
+        connection.loop.execute(connection::resumeReads);
+    }
+    
+    /**
+     * Answers a client's offer of extensions. The answer goes out before
+     * compression is turned on, so the client never receives a compressed
+     * frame it cannot yet read.
+     * @param connection the connection the offer arrived on.
+     * @param offer the EXT message.
+     * @throws IOException if the answer could not be sent.
+     */
+    private void negotiate (Connection<?> connection, Message offer)
+            throws IOException {
+        Compression settings = compression;
+        
+        if (settings == null || !settings.accepts(offer.message)) {
+            connection.reply(offer, Message.Deliminator.EXT, "");
+            return;
+        }
+        
+        connection.reply(offer, Message.Deliminator.EXT, settings.offer());
+        if (connection.compression == null)
+            connection.compression = settings.newSession();
+    }
+    
+    /**
+     * Gets the number of open connections.
+     * @return the connection count.
+     */
+    int connectionCount () {
+        return connections.size();
+    }
+    
+    /**
+     * Looks up an open connection by its id.
+     * @param id the id of the connection.
+     * @return the connection, or null if no open connection has the id.
+     */
+    public Connection<?> getConnection (long id) {
+        return connections.get(id);
+    }
+    
+    /**
+     * Gets the open connections, for iteration.
+     * @return the connections.
+     */
+    Iterable<Connection<?>> connectionList () {
+        return connections;
+    }
+    
+    /**
+     * Unregisters a closed connection.
+     * @param connection the closed connection.
+     */
+    void disconnected (Connection<?> connection) {
+        connections.remove(connection);
+        if (connection.loop != null) connection.loop.load.decrementAndGet();
+        debugLog("Client disconnected. " + connections.size() + " open.");
+        onDisconnect(connection);
+    }
+    
+    /**
+     * The body of a YST message that asks the other side if it is still
+     * there. Any other YST is an answer, and is not replied to.
+     */
+    public static final String PROBE = "?";
+    
+    // Liveness settings, in nanoseconds. Zero disables each.
+    private long pingInterval;
+    private long probeAfter;
+    private long idleTimeout;
+    
+    /**
+     * Drives the liveness checks of every connection, or null if none are
+     * enabled.
+     */
+    private volatile HashedWheelTimer timer;
+    /**
+     * Runs the liveness checks of blocking connections, whose writes may
+     * block and so must not run on the timer thread. Null whenever the timer
+     * is.
+     */
+    private volatile java.util.concurrent.ExecutorService heartbeats;
+    
+    /**
+     * Configures the heartbeats and timeouts applied to every connection.
+     * Must be called before the server is started. Any setting may be 0 to
+     * disable it.
+     * <p>
+     * Pings are PNG messages the client is expected to echo. A probe is a
+     * YST message with the body {@link #PROBE}, sent once a client has been
+     * silent for a while. Clients that stay silent past the idle timeout are
+     * sent a DSC message and disconnected. Any data from the client counts
+     * as activity, so clients answering pings never time out.
+     * <p>
+     * All connections share one {@link HashedWheelTimer}, so each of them
+     * only costs a single scheduled timeout at a time.
+     * @param pingInterval the time between pings.
+     * @param probeAfter the silence after which a client is probed.
+     * @param idleTimeout the silence after which a client is disconnected.
+     * @param unit the unit of the times.
+     */
+    public void setTimeouts (long pingInterval, long probeAfter,
+            long idleTimeout, java.util.concurrent.TimeUnit unit) {
+        if (!isClosed) throw new IllegalStateException(
+                "Timeouts must be set before the server is started.");
+        if (pingInterval < 0 || probeAfter < 0 || idleTimeout < 0) throw new
+            IllegalArgumentException("Timeouts must not be negative.");
+        
+        this.pingInterval = unit.toNanos(pingInterval);
+        this.probeAfter = unit.toNanos(probeAfter);
+        this.idleTimeout = unit.toNanos(idleTimeout);
+    }
+    
+    /**
+     * Sets the number of event loops serving connections. Must be called
+     * before the server is started, and only applies in {@code EVENT_LOOP}
+     * mode. With more than one loop, another loop is started that only
+     * accepts clients.
+     * @param count the number of worker loops, usually up to the number of
+     * cores.
+     * @param assignment how new connections are spread over the loops.
+     */
+    public void setEventLoops (int count, LoopAssignment assignment) {
+        if (!isClosed) throw new IllegalStateException(
+                "Event loops must be set before the server is started.");
+        if (count < 1) throw new IllegalArgumentException(
+                "Argument \"count\" must be positive.");
+        
+        this.loopCount = count;
+        this.loopAssignment = assignment;
+    }
+    
+    /**
+     * Picks the loop to serve a newly accepted connection. Only called by
+     * the acceptor loop.
+     * @return the loop the connection is handed to.
+     */
+    EventLoop assignLoop () {
+        if (loops.length == 1) return loops[0];
+        
+        if (loopAssignment == LoopAssignment.ROUND_ROBIN) {
+            EventLoop loop = loops[nextLoop];
+            nextLoop = (nextLoop + 1) % loops.length;
+            return loop;
+        }
+        
+        EventLoop least = loops[0];
+        for (EventLoop loop : loops)
+            if (loop.load.get() < least.load.get()) least = loop;
+        return least;
+    }
+    
+    /**
+     * Determines how a server with several event loops spreads new
+     * connections over them.
+     * @author willharris
+     */
+    public static enum LoopAssignment {
+        /**
+         * Each loop gets the next connection in turn.
+         */
+        ROUND_ROBIN,
+        /**
+         * The loop with the fewest open connections gets the next one, which
+         * evens loops out again after many clients of one loop disconnect.
+         */
+        LEAST_LOADED
+    }
+    
+    // Admission settings
+    private double connectionRate;
+    private int connectionBurst;
+    private TokenBucket globalAdmission;
+    private OverloadPolicy overloadPolicy = OverloadPolicy.REJECT;
+    
+    /**
+     * Limits the rate at which clients may send MSG frames and files, to
+     * keep one client flooding the server from starving the others. A file
+     * counts as one frame. Must be called before the server is started.
+     * Either limit may have a rate of 0 to disable it.
+     * @param connectionRate the MSG frames per second each connection may
+     * send.
+     * @param connectionBurst the frames a connection may send at once after
+     * a quiet period.
+     * @param globalRate the MSG frames per second all connections together
+     * may send.
+     * @param globalBurst the frames all connections may send at once after
+     * a quiet period.
+     * @param policy what to do with frames over a limit.
+     */
+    public void setRateLimits (double connectionRate, int connectionBurst,
+            double globalRate, int globalBurst, OverloadPolicy policy) {
+        if (!isClosed) throw new IllegalStateException(
+                "Rate limits must be set before the server is started.");
+        if (connectionRate < 0 || globalRate < 0) throw new
+            IllegalArgumentException("Rates must not be negative.");
+        
+        this.connectionRate = connectionRate;
+        this.connectionBurst = connectionBurst;
+        this.globalAdmission = globalRate > 0 ? new TokenBucket(globalRate,
+                globalBurst) : null;
+        this.overloadPolicy = policy;
+    }
+    
+    /**
+     * Determines what the server does with a frame over a rate limit.
+     * @author willharris
+     */
+    public static enum OverloadPolicy {
+        /**
+         * Drop the frame without decoding it, and answer it with an ERR.
+         */
+        REJECT,
+        /**
+         * Stop reading the connection until the limit allows the frame,
+         * which pushes back on the client through TCP flow control.
+         */
+        PAUSE,
+        /**
+         * Send an ERR and close the connection.
+         */
+        CLOSE
+    }
+    
+    /**
+     * The compression clients may negotiate, or null.
+     */
+    private volatile Compression compression;
+    
+    /**
+     * Lets clients negotiate compression of large message bodies. Must be
+     * called before the server is started.
+     * @param compression the compression settings, which must match those
+     * of the clients, or null to refuse compression.
+     */
+    public void setCompression (Compression compression) {
+        if (!isClosed) throw new IllegalStateException(
+                "Compression must be set before the server is started.");
+        
+        this.compression = compression;
+    }
+    
+    /**
+     * Gets the delay before a new connection's first liveness check.
+     * @return the delay in nanoseconds.
+     */
+    private long firstLivenessCheck () {
+        long first = Long.MAX_VALUE;
+        if (pingInterval > 0) first = Math.min(first, pingInterval);
+        if (probeAfter > 0) first = Math.min(first, probeAfter);
+        if (idleTimeout > 0) first = Math.min(first, idleTimeout);
+        return first;
+    }
+    
+    /**
+     * Schedules a connection's next liveness check. The check runs on the
+     * connection's loop, or on a heartbeat thread for blocking connections.
+     * @param heartbeat the timer to schedule on.
+     * @param connection the connection to check.
+     * @param delay the delay in nanoseconds.
+     */
+    private void scheduleLiveness (HashedWheelTimer heartbeat,
+            Connection<?> connection, long delay) {
+        // Nothing is scheduled once close() has closed the timer.
+        try {
+            connection.liveness = heartbeat.newTimeout(() -> {
+                if (connection.loop != null) connection.loop.execute(
+                        () -> checkLiveness(connection));
+                else {
+                    java.util.concurrent.ExecutorService checks = heartbeats;
+                    
+                    // Nothing is checked once the server is closing.
+                    try {
+                        if (checks != null) checks.execute(
+                                () -> checkLiveness(connection));
+                    } catch (java.util.concurrent
+                            .RejectedExecutionException e) {}
+                }
+            }, delay, java.util.concurrent.TimeUnit.NANOSECONDS);
+        } catch (IllegalStateException e) {}
+    }
+    
+    /**
+     * Pings, probes or disconnects a connection as its activity requires,
+     * then schedules the next check.
+     * @param connection the connection to check.
+     */
+    private void checkLiveness (Connection<?> connection) {
+        HashedWheelTimer heartbeat = timer;
+        if (connection.isClosed() || heartbeat == null) return;
+        
+        long now = System.nanoTime();
+        long idle = now - connection.lastRead;
+        long next = Long.MAX_VALUE;
+        
+        try {
+            if (idleTimeout > 0 && idle >= idleTimeout) {
+                debugLog("Disconnecting idle client.");
+                connection.sendMessage(Message.Deliminator.DSC,
+                        "Idle timeout.");
+                if (connection.loop != null) connection.flush();
+                connection.closeNow();
+                return;
+            }
+            if (idleTimeout > 0) next = idleTimeout - idle;
+            
+            // A probed client is checked again once it could have replied,
+            // which makes it eligible for probing again.
+            if (probeAfter > 0) {
+                if (connection.probed) next = Math.min(next, probeAfter);
+                else if (idle >= probeAfter) {
+                    // Set first, as the reply may be read on another thread.
+                    connection.probed = true;
+                    connection.sendMessage(Message.Deliminator.YST, PROBE);
+                    next = Math.min(next, probeAfter);
+                } else next = Math.min(next, probeAfter - idle);
+            }
+            
+            if (pingInterval > 0) {
+                long since = now - connection.lastPing;
+                
+                if (since >= pingInterval) {
+                    String token = Long.toString(now);
+                    connection.pingToken = token;
+                    connection.lastPing = now;
+                    connection.sendMessage(Message.Deliminator.PNG, token);
+                    since = 0;
+                }
+                
+                next = Math.min(next, pingInterval - since);
+            }
+        } catch (IOException e) {
+            debugLog("Heartbeat failed: " + e.getMessage());
+            connection.closeNow();
+            return;
+        }
+        
+        if (next == Long.MAX_VALUE) return;
+        scheduleLiveness(heartbeat, connection, next);
     }
     
     @Override
     public void close () throws IOException {
-        for (Connection n : connections) n.close();
-        
-        serverSocket.close();
+        if (isClosed) return;
         isClosed = true;
+        
+        serverChannel.close();
+        java.net.SocketAddress bound = address;
+        address = null;
+        if (bound instanceof java.net.UnixDomainSocketAddress)
+            java.nio.file.Files.deleteIfExists(
+                    ((java.net.UnixDomainSocketAddress)bound).getPath());
+        
+        if (timer != null) {
+            timer.close();
+            timer = null;
+            heartbeats.shutdownNow();
+            heartbeats = null;
+        }
+        
+        // Stops the loops first, so connections close on this thread.
+        try {
+            if (acceptorLoop != null) acceptorLoop.shutdown();
+            if (loops != null) for (EventLoop loop : loops) loop.shutdown();
+            if (acceptor != null) acceptor.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        
+        for (Connection<?> n : connections) n.close();
+        stdLog("Server closed.");
     }
     
+    /**
+     * Binds the server to the given port and starts accepting clients on the
+     * event loop thread. This method returns immediately.
+     * @param port the port to listen on.
+     * @throws IOException if the port could not be bound.
+     */
     public void start (int port) throws IOException {
         
+        if (!isClosed) throw new IllegalStateException(
+                "The server is already running.");
+        
+        bind(ServerSocketChannel.open(), new InetSocketAddress(port));
+        listen(Integer.toString(getPort()));
+    }
+    
+    /**
+     * Binds the server to a Unix domain socket and starts accepting clients
+     * on the event loop thread. This method returns immediately. The socket
+     * file must not exist yet, and is deleted when the server is closed.
+     * @param path the path of the socket file to create.
+     * @throws IOException if the socket could not be bound.
+     */
+    public void start (java.nio.file.Path path) throws IOException {
+        
+        if (!isClosed) throw new IllegalStateException(
+                "The server is already running.");
+        
+        bind(ServerSocketChannel.open(java.net.StandardProtocolFamily.UNIX),
+                java.net.UnixDomainSocketAddress.of(path));
+        listen(path.getFileName().toString());
+    }
+    
+    /**
+     * Binds a new server channel, and closes it if that fails.
+     * @param channel the unbound channel.
+     * @param address the address to bind to.
+     * @throws IOException if the address could not be bound.
+     */
+    private void bind (ServerSocketChannel channel,
+            java.net.SocketAddress address) throws IOException {
+        try {
+            channel.bind(address, BACKLOG);
+            this.address = channel.getLocalAddress();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        serverChannel = channel;
+    }
+    
+    /**
+     * Starts accepting clients on the bound server channel.
+     * @param name names the server's threads, such as its port.
+     * @throws IOException if a loop's selector could not be opened.
+     */
+    private void listen (String name) throws IOException {
+        
+        // Pauses for rate limits need a finer tick than heartbeats.
+        boolean pausing = overloadPolicy == OverloadPolicy.PAUSE
+                && (connectionRate > 0 || globalAdmission != null);
+        if (firstLivenessCheck() != Long.MAX_VALUE || pausing) {
+            timer = new HashedWheelTimer(pausing ? 10 : 100,
+                    java.util.concurrent.TimeUnit.MILLISECONDS, 512,
+                    "billiam-timer-" + name);
+            timer.errorHandler = e -> stdLog("Timer task failed: " + e);
+            
+            heartbeats = java.util.concurrent.Executors.newCachedThreadPool(
+                    task -> {
+                        Thread thread = new Thread(task, "billiam-heartbeat-"
+                                + name);
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+        }
+        
+        switch (executionMode) {
+            case EVENT_LOOP:
+                loops = new EventLoop[loopCount];
+                nextLoop = 0;
+                
+                if (loopCount == 1) {
+                    loops[0] = new EventLoop(this, "billiam-server-" + name, 0);
+                    acceptorLoop = loops[0];
+                } else {
+                    for (int n = 0; n < loopCount; ++n) loops[n] = new
+                        EventLoop(this, "billiam-worker-" + name + "-" + n, n);
+                    acceptorLoop = new EventLoop(this, "billiam-acceptor-"
+                            + name, -1);
+                }
+                
+                acceptorLoop.listen(serverChannel);
+                for (EventLoop loop : loops) loop.start();
+                if (loopCount > 1) acceptorLoop.start();
+                break;
+            case VIRTUAL_THREAD_PER_CONNECTION:
+                connectionThreads = virtualThreadFactory();
+                acceptor = new Thread(this::acceptBlocking,
+                        "billiam-acceptor-" + name);
+                acceptor.start();
+                break;
+        }
+        
         isClosed = false;
+        if (address instanceof InetSocketAddress) stdLog("Server listening "
+                + "on port " + getPort() + ".");
+        else stdLog("Server listening on " + address + ".");
+    }
+    
+    /**
+     * What a broadcast does with connections that are not writable, unless
+     * the broadcast is given a policy of its own.
+     */
+    public volatile SlowReceiverPolicy slowReceiverPolicy =
+            SlowReceiverPolicy.SKIP;
+    
+    /**
+     * Sends a message to every open connection.
+     * @param message the message to send.
+     * @return the number of connections the message was sent to.
+     */
+    public int broadcast (Message message) {
+        return broadcast(message, connections, slowReceiverPolicy);
+    }
+    
+    /**
+     * Sends a message to every open connection.
+     * @param deliminator the type of message to send.
+     * @param message the message body.
+     * @return the number of connections the message was sent to.
+     */
+    public int broadcast (Message.Deliminator deliminator, String message) {
+        return broadcast(new Message(deliminator, message));
+    }
+    
+    /**
+     * Sends a message to every open connection the filter accepts.
+     * @param message the message to send.
+     * @param filter selects the connections to send to.
+     * @return the number of connections the message was sent to.
+     */
+    public int broadcast (Message message,
+            java.util.function.Predicate<Connection<?>> filter) {
+        java.util.ArrayList<Connection<?>> group = new java.util.ArrayList<>();
+        for (Connection<?> connection : connections)
+            if (filter.test(connection)) group.add(connection);
+        
+        return broadcast(message, group, slowReceiverPolicy);
+    }
+    
+    /**
+     * Sends a message to a group of connections, such as the players of a
+     * lobby. The message is encoded once into a buffer leased from the
+     * {@linkplain BufferPool#DEFAULT default pool}, which every connection
+     * writes from, so the cost per receiver does not depend on the size of
+     * the message. Each outbound queue holds a share of the lease, and the
+     * buffer returns to the pool once the last of them has been written.
+     * @param message the message to send.
+     * @param group the connections to send to. Closed ones are ignored.
+     * @param policy what to do with connections that are not writable.
+     * @return the number of connections the message was sent to.
+     */
+    public int broadcast (Message message, Iterable<Connection<?>> group,
+            SlowReceiverPolicy policy) {
+        PooledBuffer frame = BufferPool.DEFAULT.acquire(
+                FrameCodec.frameLength(message));
+        FrameCodec.encode(message, frame.buffer());
+        frame.buffer().flip();
         
+        int sent = 0;
+        try {
+            for (Connection<?> connection : group) {
+                if (connection.isClosed()) continue;
+                
+                if (!connection.isWritable()) {
+                    if (policy == SlowReceiverPolicy.SKIP) continue;
+                    
+                    if (policy == SlowReceiverPolicy.DISCONNECT) {
+                        debugLog("Dropping slow receiver.");
+                        try {
+                            connection.close();
+                        } catch (IOException e) {
+                            debugLog("Close failed: " + e.getMessage());
+                        }
+                        continue;
+                    }
+                }
+                
+                try {
+                    connection.sendFrame(frame);
+                    ++sent;
+                } catch (IOException e) {
+                    debugLog("Broadcast failed: " + e.getMessage());
+                }
+            }
+        } finally {
+            frame.release();
+        }
+        
+        return sent;
+    }
+    
+    /**
+     * Determines what a broadcast does with a connection whose outbound queue
+     * is above its high watermark. Connections served by their own thread
+     * are always writable, and a broadcast blocks until it has written to
+     * them.
+     * @author willharris
+     */
+    public static enum SlowReceiverPolicy {
+        /**
+         * Queue the message anyway.
+         */
+        QUEUE,
+        /**
+         * Leave the connection out of this broadcast.
+         */
+        SKIP,
+        /**
+         * Close the connection.
+         */
+        DISCONNECT
+    }
+    
+    /**
+     * Gets the port this server is bound to, which is useful after starting
+     * on port 0.
+     * @return the local port, or -1 if the server is not running or is
+     * bound to a Unix domain socket.
+     */
+    public int getPort () {
+        java.net.SocketAddress bound = address;
+        if (!(bound instanceof InetSocketAddress)) return -1;
+        return ((InetSocketAddress)bound).getPort();
+    }
+    
+    /**
+     * Gets the address this server is bound to, which is a
+     * {@link java.net.UnixDomainSocketAddress} for servers started with a
+     * path.
+     * @return the local address, or null if the server is not running.
+     */
+    public java.net.SocketAddress getAddress () {
+        return address;
+    }
+    
+    /**
+     * The number of pending connections the operating system may queue before
+     * they are accepted. Large so that connection storms are not refused.
+     */
+    private static final int BACKLOG = 4096;
+    
+    /**
+     * The thread accepting clients in {@code VIRTUAL_THREAD_PER_CONNECTION}
+     * mode.
+     */
+    private Thread acceptor;
+    
+    /**
+     * Creates the thread serving each connection in
+     * {@code VIRTUAL_THREAD_PER_CONNECTION} mode.
+     */
+    private java.util.concurrent.ThreadFactory connectionThreads;
+    
+    /**
+     * Accepts clients with a blocking channel and starts a thread serving
+     * each of them, until the server channel is closed.
+     */
+    private void acceptBlocking () {
+        while (serverChannel.isOpen()) {
+            Connection<?> connection;
+            
+            try {
+                SocketChannel channel = serverChannel.accept();
+                Connection.setNoDelay(channel);
+                
+                connection = createConnection(channel);
+                connection.server = this;
+            } catch (java.nio.channels.ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                debugLog("Accept failed: " + e.getMessage());
+                continue;
+            }
+            
+            connected(connection);
+            connectionThreads.newThread(() -> serveUntilClosed(connection))
+                    .start();
+        }
+    }
+    
+    /**
+     * Serves a connection on the calling thread, and closes it once serving
+     * ends.
+     * @param connection the connection to serve.
+     */
+    private void serveUntilClosed (Connection<?> connection) {
+        // The thread ends with the connection, so it keeps no buffers.
+        BufferPool.DEFAULT.skipLocalCache();
+        
+        try {
+            serve(connection);
+        } catch (RuntimeException e) {
+            stdLog("Connection failed: " + e);
+        } finally {
+            connection.closeNow();
+            connection.releaseBuffers();
+        }
+    }
+    
+    /**
+     * Serves a client connected through a shared-memory channel, as if it
+     * had connected over a socket. The connection is served by a platform
+     * thread of its own, whatever the execution mode, as the thread waits on
+     * the ring with the channel's wait strategy rather than in the kernel.
+     * Must be called on a started server.
+     * @param channel the creating side of the channel.
+     * @return the new connection.
+     * @throws IOException if the connection could not be created.
+     */
+    public Connection<?> accept (SharedMemoryChannel channel)
+            throws IOException {
+        if (isClosed) throw new IllegalStateException(
+                "The server is not running.");
+        
+        Connection<?> connection = createConnection(channel);
+        connection.server = this;
+        connected(connection);
+        
+        Thread thread = new Thread(() -> serveUntilClosed(connection),
+                "billiam-shm-" + connection.id());
+        thread.setDaemon(true);
+        thread.start();
+        return connection;
+    }
+    
+    /**
+     * Gets a factory of virtual threads, looked up reflectively so that this
+     * class still loads on runtimes without them. Falls back to daemon
+     * platform threads, which will not scale to large connection counts.
+     * @return the factory to create connection threads with.
+     */
+    private java.util.concurrent.ThreadFactory virtualThreadFactory () {
+        try {
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderType.getMethod("name", String.class, long.class)
+                    .invoke(builder, "billiam-connection-", 0L);
+            return (java.util.concurrent.ThreadFactory)builderType
+                    .getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            stdLog("Virtual threads are unavailable on this runtime; "
+                    + "using platform threads.");
+            return task -> {
+                Thread thread = new Thread(task, "billiam-connection");
+                thread.setDaemon(true);
+                return thread;
+            };
+        }
+    }
+    
+    /**
+     * Determines how a server runs the code that serves its connections.
+     * <p>
+     * {@code EVENT_LOOP} suits handlers that never block: a single thread
+     * serves every client. {@code VIRTUAL_THREAD_PER_CONNECTION} suits
+     * handlers written in a blocking style, such as ones that read
+     * {@code Connection.in} or wait on a database: each client gets its own
+     * virtual thread, which only occupies a platform thread while it is
+     * running, so a blocked handler costs a few kilobytes of heap instead of
+     * a thread stack.
+     * <p>
+     * To hold around 100,000 loopback connections in one JVM:
+     * <ul>
+     * <li>raise the open file limit ({@code ulimit -n}) above twice the
+     * connection count, as both ends of a loopback socket use a
+     * descriptor;</li>
+     * <li>spread clients over several source addresses such as 127.0.0.2,
+     * 127.0.0.3, ..., since each source address only has about 28,000
+     * ephemeral ports ({@code net.ipv4.ip_local_port_range});</li>
+     * <li>size the heap for roughly 2-4 KB per idle connection;</li>
+     * <li>guard blocking calls with {@code java.util.concurrent.locks}
+     * rather than {@code synchronized}, which pins a virtual thread to its
+     * carrier while it blocks.</li>
+     * </ul>
+     * Virtual threads need Java 21. On older runtimes this mode falls back to
+     * one platform thread per connection.
+     * @author willharris
+     */
+    public static enum ExecutionMode {
+        /**
+         * All connections are served by one non-blocking event loop thread.
+         */
+        EVENT_LOOP,
+        /**
+         * Every connection is served by its own virtual thread using
+         * blocking I/O.
+         */
+        VIRTUAL_THREAD_PER_CONNECTION
     }
     
     /**
      * True if the server is closed, false if it isn't.
      */
-    private boolean isClosed = true;
+    private volatile boolean isClosed = true;
 }
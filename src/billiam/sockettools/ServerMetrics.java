@@ -0,0 +1,262 @@
+/*
+ * Billiam Library is a collection of packages and classes
+ * created by Will Harris.
+ */
+package billiam.sockettools;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Load figures of a server: traffic counters, frame rates by deliminator,
+ * outbound queue depths and the round trip time of pings. Counters are
+ * LongAdders, so the I/O threads update them without contending with each
+ * other or with readers.
+ * <p>
+ * Rates are measured between calls to {@code sample()}, which {@code dump()}
+ * calls; sample at a steady interval to get meaningful per-second figures.
+ * @author willharris
+ */
+public final class ServerMetrics {
+    
+    private static final Message.Deliminator[] TYPES =
+            Message.Deliminator.values();
+    
+    /**
+     * The server measured.
+     */
+    private final Server server;
+    
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder[] framesIn = adders();
+    private final LongAdder[] framesOut = adders();
+    
+    // Load shed by admission control.
+    private final LongAdder framesShed = new LongAdder();
+    private final LongAdder bytesShed = new LongAdder();
+    private final LongAdder readPauses = new LongAdder();
+    private final LongAdder overloadCloses = new LongAdder();
+    
+    /**
+     * Round trip times of answered pings, in nanoseconds.
+     */
+    public final LatencyHistogram pingRtt = new LatencyHistogram();
+    
+    // Rate sampling state, guarded by this.
+    private long sampledAt = System.nanoTime();
+    private final long[] sampledIn = new long[TYPES.length];
+    private final long[] sampledOut = new long[TYPES.length];
+    private final double[] rateIn = new double[TYPES.length];
+    private final double[] rateOut = new double[TYPES.length];
+    
+    ServerMetrics (Server server) {
+        this.server = server;
+    }
+    
+    private static LongAdder[] adders () {
+        LongAdder[] adders = new LongAdder[TYPES.length];
+        for (int n = 0; n < adders.length; ++n) adders[n] = new LongAdder();
+        return adders;
+    }
+    
+    void addBytesIn (long bytes) {
+        bytesIn.add(bytes);
+    }
+    
+    void addBytesOut (long bytes) {
+        bytesOut.add(bytes);
+    }
+    
+    void addFrameIn (Message.Deliminator deliminator) {
+        framesIn[deliminator.ordinal()].increment();
+    }
+    
+    void addFrameOut (Message.Deliminator deliminator) {
+        framesOut[deliminator.ordinal()].increment();
+    }
+    
+    void addShed (int bytes) {
+        framesShed.increment();
+        bytesShed.add(bytes);
+    }
+    
+    void addReadPause () {
+        readPauses.increment();
+    }
+    
+    void addOverloadClose () {
+        overloadCloses.increment();
+    }
+    
+    /**
+     * Gets the number of bytes received by all connections.
+     * @return the bytes received.
+     */
+    public long bytesIn () {
+        return bytesIn.sum();
+    }
+    
+    /**
+     * Gets the number of bytes written to all connections.
+     * @return the bytes sent.
+     */
+    public long bytesOut () {
+        return bytesOut.sum();
+    }
+    
+    /**
+     * Gets the number of messages of a type received.
+     * @param deliminator the type of message.
+     * @return the messages received.
+     */
+    public long framesIn (Message.Deliminator deliminator) {
+        return framesIn[deliminator.ordinal()].sum();
+    }
+    
+    /**
+     * Gets the number of messages of a type sent.
+     * @param deliminator the type of message.
+     * @return the messages sent.
+     */
+    public long framesOut (Message.Deliminator deliminator) {
+        return framesOut[deliminator.ordinal()].sum();
+    }
+    
+    /**
+     * Gets the rate messages of a type were received at, as of the last
+     * sample.
+     * @param deliminator the type of message.
+     * @return messages per second between the last two samples.
+     */
+    public synchronized double framesInPerSecond (
+            Message.Deliminator deliminator) {
+        return rateIn[deliminator.ordinal()];
+    }
+    
+    /**
+     * Gets the rate messages of a type were sent at, as of the last sample.
+     * @param deliminator the type of message.
+     * @return messages per second between the last two samples.
+     */
+    public synchronized double framesOutPerSecond (
+            Message.Deliminator deliminator) {
+        return rateOut[deliminator.ordinal()];
+    }
+    
+    /**
+     * Gets the number of frames dropped because a rate limit was exceeded.
+     * @return the frames shed.
+     */
+    public long framesShed () {
+        return framesShed.sum();
+    }
+    
+    /**
+     * Gets the number of bytes of frames dropped because a rate limit was
+     * exceeded.
+     * @return the bytes shed.
+     */
+    public long bytesShed () {
+        return bytesShed.sum();
+    }
+    
+    /**
+     * Gets the number of times reading a connection was paused because a
+     * rate limit was exceeded.
+     * @return the pause count.
+     */
+    public long readPauses () {
+        return readPauses.sum();
+    }
+    
+    /**
+     * Gets the number of connections closed because a rate limit was
+     * exceeded.
+     * @return the close count.
+     */
+    public long overloadCloses () {
+        return overloadCloses.sum();
+    }
+    
+    /**
+     * Gets the number of open connections.
+     * @return the connection count.
+     */
+    public int connections () {
+        return server.connectionCount();
+    }
+    
+    /**
+     * Gets the number of bytes queued on all connections and not yet
+     * written. This walks every connection.
+     * @return the total outbound queue depth.
+     */
+    public long queuedBytes () {
+        long queued = 0;
+        for (Connection<?> connection : server.connectionList())
+            queued += connection.pendingBytes();
+        return queued;
+    }
+    
+    /**
+     * Gets the deepest outbound queue of any connection. This walks every
+     * connection.
+     * @return the largest queue depth, in bytes.
+     */
+    public long maxQueuedBytes () {
+        long max = 0;
+        for (Connection<?> connection : server.connectionList())
+            max = Math.max(max, connection.pendingBytes());
+        return max;
+    }
+    
+    /**
+     * Updates the frame rates with the traffic since the previous sample.
+     */
+    public synchronized void sample () {
+        long now = System.nanoTime();
+        double seconds = (now - sampledAt) / 1e9;
+        if (seconds <= 0) return;
+        
+        for (int n = 0; n < TYPES.length; ++n) {
+            long in = framesIn[n].sum();
+            long out = framesOut[n].sum();
+            rateIn[n] = (in - sampledIn[n]) / seconds;
+            rateOut[n] = (out - sampledOut[n]) / seconds;
+            sampledIn[n] = in;
+            sampledOut[n] = out;
+        }
+        
+        sampledAt = now;
+    }
+    
+    /**
+     * Takes a sample and formats every figure as text, one per line.
+     * @return the formatted metrics.
+     */
+    public String dump () {
+        sample();
+        
+        StringBuilder text = new StringBuilder();
+        text.append("connections ").append(connections()).append('\n');
+        text.append("bytes.in ").append(bytesIn()).append('\n');
+        text.append("bytes.out ").append(bytesOut()).append('\n');
+        
+        synchronized (this) {
+            for (Message.Deliminator type : TYPES) {
+                text.append(String.format("frames.%s in=%d (%.1f/s) "
+                        + "out=%d (%.1f/s)%n", type.name(), framesIn(type),
+                        rateIn[type.ordinal()], framesOut(type),
+                        rateOut[type.ordinal()]));
+            }
+        }
+        
+        text.append("shed frames=").append(framesShed()).append(" bytes=")
+                .append(bytesShed()).append(" pauses=").append(readPauses())
+                .append(" closes=").append(overloadCloses()).append('\n');
+        text.append("queue.bytes total=").append(queuedBytes())
+                .append(" max=").append(maxQueuedBytes()).append('\n');
+        text.append("ping.rtt ").append(pingRtt).append('\n');
+        return text.toString();
+    }
+}
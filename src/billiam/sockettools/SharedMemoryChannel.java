@@ -0,0 +1,337 @@
+/*
+ * Billiam Library is a collection of packages and classes
+ * created by Will Harris.
+ */
+package billiam.sockettools;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A byte channel between two processes on the same host, through a
+ * memory-mapped file rather than a socket. The file holds two
+ * single-producer, single-consumer ring buffers, one for each direction, so
+ * sending a frame is a copy into shared memory and a single ordered store,
+ * with no system call and no kernel buffer on the way.
+ * <p>
+ * One side creates the file with {@code create()} and serves it with
+ * {@link Server#accept(SharedMemoryChannel)}; the other opens it with
+ * {@code open()}, usually through a {@link Client} created with the file's
+ * path. Each file carries exactly one connection. Frames are the same as on
+ * a socket, so handlers do not change.
+ * <p>
+ * Reads and writes block the calling thread while the ring is empty or full,
+ * waiting with the channel's {@link WaitStrategy}. Only one thread may read
+ * at a time, and only one thread may write at a time, which a
+ * {@link Connection} ensures.
+ * @author willharris
+ */
+public final class SharedMemoryChannel implements ByteChannel {
+    
+    /**
+     * Marks a file laid out as this class expects: "BSHM".
+     */
+    private static final int MAGIC = 0x4253484D;
+    
+    /**
+     * The default capacity of each ring, in bytes.
+     */
+    public static final int DEFAULT_CAPACITY = 1 << 20;
+    
+    // Layout of the file. Positions the two sides write live on cache lines
+    // of their own, so the sides do not invalidate each other's lines.
+    private static final int CACHE_LINE = 64;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int CAPACITY_OFFSET = 4;
+    private static final int CLOSED_OFFSET = 8;
+    private static final int HEADER = CACHE_LINE;
+    /**
+     * The control block of a ring: its write position, then its read
+     * position, a cache line apart.
+     */
+    private static final int CONTROL = 2 * CACHE_LINE;
+    
+    /**
+     * Ordered access to the positions in the mapped file.
+     */
+    private static final VarHandle LONGS = MethodHandles
+            .byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    private static final VarHandle INTS = MethodHandles
+            .byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+    
+    /**
+     * How long a PARK wait spins before it starts parking.
+     */
+    private static final int SPINS = 1000;
+    /**
+     * The longest a PARK wait parks at a time, in nanoseconds.
+     */
+    private static final long MAX_PARK = 1000000;
+    
+    /**
+     * The whole mapped file.
+     */
+    private final MappedByteBuffer memory;
+    /**
+     * The bytes of each ring, which is a power of two.
+     */
+    private final int capacity;
+    /**
+     * The offset of the control block of the ring this side writes, and of
+     * the one it reads.
+     */
+    private final int outControl, inControl;
+    /**
+     * Views of the data of the ring this side writes, and of the one it
+     * reads. Absolute gets and puts only, so positions are never shared.
+     */
+    private final ByteBuffer outData, inData;
+    /**
+     * The file, which the creating side deletes when it closes, or null.
+     */
+    private final Path owned;
+    /**
+     * The way this side waits on an empty or full ring.
+     */
+    public final WaitStrategy waitStrategy;
+    /**
+     * False once this side has closed the channel.
+     */
+    private volatile boolean open = true;
+    
+    private SharedMemoryChannel (MappedByteBuffer memory, int capacity,
+            boolean creator, Path owned, WaitStrategy waitStrategy) {
+        this.memory = memory;
+        this.capacity = capacity;
+        this.owned = owned;
+        this.waitStrategy = waitStrategy;
+        
+        // The creator writes the first ring and reads the second.
+        int first = HEADER;
+        int second = HEADER + CONTROL + capacity;
+        this.outControl = creator ? first : second;
+        this.inControl = creator ? second : first;
+        this.outData = memory.slice(outControl + CONTROL, capacity);
+        this.inData = memory.slice(inControl + CONTROL, capacity);
+    }
+    
+    /**
+     * Creates the file of a new channel, which the other side may then open.
+     * @param path the path of the file, which must not exist yet.
+     * @param capacity the bytes of each ring, rounded up to a power of two
+     * of at least the cache line size, so the second ring's control block
+     * stays aligned.
+     * @param waitStrategy the way this side waits.
+     * @return the creating side of the channel.
+     * @throws IOException if the file could not be created.
+     */
+    public static SharedMemoryChannel create (Path path, int capacity,
+            WaitStrategy waitStrategy) throws IOException {
+        if (capacity < 1 || capacity > 1 << 30) throw new
+            IllegalArgumentException("Argument \"capacity\" out of range. "
+                    + "Expected 1 to 2^30; got " + capacity + ".");
+        
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) size <<= 1;
+        size = Math.max(size, CACHE_LINE);
+        
+        MappedByteBuffer memory;
+        try (FileChannel file = FileChannel.open(path,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            memory = file.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + 2L
+                    * (CONTROL + size));
+        }
+        
+        // The magic number goes last, so an opener sees a complete header.
+        memory.putInt(CAPACITY_OFFSET, size);
+        INTS.setRelease(memory, MAGIC_OFFSET, MAGIC);
+        return new SharedMemoryChannel(memory, size, true, path,
+                waitStrategy);
+    }
+    
+    /**
+     * Opens the file of a channel created by the other side.
+     * @param path the path of the file.
+     * @param waitStrategy the way this side waits.
+     * @return the opening side of the channel.
+     * @throws IOException if the file could not be opened, or is not a
+     * channel's file, or the channel was already closed.
+     */
+    public static SharedMemoryChannel open (Path path,
+            WaitStrategy waitStrategy) throws IOException {
+        MappedByteBuffer memory;
+        try (FileChannel file = FileChannel.open(path,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (file.size() < HEADER) throw new IOException(path
+                    + " is not a shared memory channel.");
+            memory = file.map(FileChannel.MapMode.READ_WRITE, 0,
+                    file.size());
+        }
+        
+        boolean ready = (int)INTS.getAcquire(memory, MAGIC_OFFSET) == MAGIC;
+        int capacity = memory.getInt(CAPACITY_OFFSET);
+        if (!ready || Integer.bitCount(capacity) != 1 || capacity < CACHE_LINE
+                || memory.capacity() < HEADER + 2L * (CONTROL + capacity))
+            throw new IOException(path + " is not a shared memory channel.");
+        if ((int)INTS.getAcquire(memory, CLOSED_OFFSET) != 0) throw new
+            ClosedChannelException();
+        
+        return new SharedMemoryChannel(memory, capacity, false, null,
+                waitStrategy);
+    }
+    
+    /**
+     * Reads whatever the other side has written, waiting until it has
+     * written something.
+     * @param dst the buffer to read into.
+     * @return the number of bytes read, or -1 once the other side has closed
+     * the channel and everything it wrote has been read.
+     * @throws IOException if this side closed the channel.
+     */
+    @Override
+    public int read (ByteBuffer dst) throws IOException {
+        if (!dst.hasRemaining()) return 0;
+        
+        long head = (long)LONGS.getOpaque(memory, inControl + CACHE_LINE);
+        long tail;
+        
+        for (int round = 0; ; ++round) {
+            tail = (long)LONGS.getAcquire(memory, inControl);
+            if (tail != head) break;
+            
+            if (!open) throw new java.nio.channels.AsynchronousCloseException();
+            if ((int)INTS.getAcquire(memory, CLOSED_OFFSET) != 0) {
+                // Writes made before closing are visible by now.
+                tail = (long)LONGS.getAcquire(memory, inControl);
+                if (tail != head) break;
+                return -1;
+            }
+            idle(round);
+        }
+        
+        int length = (int)Math.min(tail - head, dst.remaining());
+        copy(inData, (int)head & (capacity - 1), dst, length);
+        LONGS.setRelease(memory, inControl + CACHE_LINE, head + length);
+        return length;
+    }
+    
+    /**
+     * Writes every byte of the buffer, waiting for the other side to make
+     * room whenever the ring is full.
+     * @param src the buffer to write from.
+     * @return the number of bytes written, which is all of them.
+     * @throws IOException if either side closed the channel.
+     */
+    @Override
+    public int write (ByteBuffer src) throws IOException {
+        int length = src.remaining();
+        long tail = (long)LONGS.getOpaque(memory, outControl);
+        
+        while (src.hasRemaining()) {
+            long free;
+            for (int round = 0; ; ++round) {
+                if (!open || (int)INTS.getAcquire(memory, CLOSED_OFFSET)
+                        != 0) throw new ClosedChannelException();
+                
+                long head = (long)LONGS.getAcquire(memory, outControl
+                        + CACHE_LINE);
+                free = capacity - (tail - head);
+                if (free > 0) break;
+                idle(round);
+            }
+            
+            int chunk = (int)Math.min(free, src.remaining());
+            int index = (int)tail & (capacity - 1);
+            int first = Math.min(chunk, capacity - index);
+            
+            outData.put(index, src, src.position(), first);
+            outData.put(0, src, src.position() + first, chunk - first);
+            src.position(src.position() + chunk);
+            
+            tail += chunk;
+            LONGS.setRelease(memory, outControl, tail);
+        }
+        
+        return length;
+    }
+    
+    /**
+     * Copies bytes out of a ring, wrapping around its end.
+     * @param data the data of the ring.
+     * @param index the index of the first byte.
+     * @param dst the buffer to copy into, which is advanced.
+     * @param length the number of bytes to copy.
+     */
+    private void copy (ByteBuffer data, int index, ByteBuffer dst,
+            int length) {
+        int first = Math.min(length, capacity - index);
+        dst.put(dst.position(), data, index, first);
+        dst.put(dst.position() + first, data, 0, length - first);
+        dst.position(dst.position() + length);
+    }
+    
+    /**
+     * Waits a little for the other side.
+     * @param round the number of times this wait has already idled.
+     */
+    private void idle (int round) {
+        if (waitStrategy == WaitStrategy.BUSY_SPIN || round < SPINS) {
+            Thread.onSpinWait();
+            return;
+        }
+        
+        // Parks for longer the longer the other side stays quiet.
+        int shift = Math.min((round - SPINS) / 16, 20);
+        java.util.concurrent.locks.LockSupport.parkNanos(Math.min(1000L
+                << shift, MAX_PARK));
+    }
+    
+    @Override
+    public boolean isOpen () {
+        return open;
+    }
+    
+    /**
+     * Closes the channel for both sides. The other side reads what was
+     * written before, then sees the end of the stream. The creating side
+     * deletes the file.
+     * @throws IOException if the file could not be deleted.
+     */
+    @Override
+    public void close () throws IOException {
+        if (!open) return;
+        open = false;
+        
+        INTS.setRelease(memory, CLOSED_OFFSET, 1);
+        if (owned != null) java.nio.file.Files.deleteIfExists(owned);
+    }
+    
+    /**
+     * Determines how a side of a {@link SharedMemoryChannel} waits for the
+     * other, when there is nothing to read or no room to write.
+     * @author willharris
+     */
+    public static enum WaitStrategy {
+        /**
+         * Spin on the ring without ever giving up the core. Gives the lowest
+         * latency, at the cost of a core per waiting thread.
+         */
+        BUSY_SPIN,
+        /**
+         * Spin briefly, then park for growing intervals of up to a
+         * millisecond. Idle connections cost next to nothing, but a message
+         * arriving after a quiet period waits for the park to end.
+         */
+        PARK
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Billiam Library is a collection of packages and classes
+ * created by Will Harris.
+ */
+package billiam.sockettools;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free token bucket, which admits events at a steady rate while
+ * allowing short bursts. Rather than a token count refilled by a timer, the
+ * bucket keeps the time at which it would be full again, so taking a token
+ * is a single compare-and-set and needs no thread of its own.
+ * @author willharris
+ */
+public final class TokenBucket {
+    
+    /**
+     * The nanoseconds it takes to earn one token.
+     */
+    private final long interval;
+    /**
+     * The nanoseconds of tokens the bucket holds when full.
+     */
+    private final long capacity;
+    /**
+     * The time, in System.nanoTime(), at which every token taken so far has
+     * been earned back.
+     */
+    private final AtomicLong earned = new AtomicLong(System.nanoTime());
+    
+    /**
+     * The tokens earned per second.
+     */
+    public final double rate;
+    /**
+     * The most tokens that may be taken at once after a quiet period.
+     */
+    public final int burst;
+    
+    /**
+     * Creates a full bucket.
+     * @param rate the tokens earned per second.
+     * @param burst the most tokens the bucket holds.
+     */
+    public TokenBucket (double rate, int burst) {
+        if (!(rate > 0) || burst < 1) throw new IllegalArgumentException(
+                "Rate and burst must be positive.");
+        
+        this.rate = rate;
+        this.burst = burst;
+        this.interval = Math.max(1, (long)(1e9 / rate));
+        this.capacity = interval * burst;
+    }
+    
+    /**
+     * Takes a token if one is available.
+     * @return 0 if a token was taken, or else the nanoseconds until one will
+     * be available.
+     */
+    public long tryAcquire () {
+        while (true) {
+            long now = System.nanoTime();
+            long current = earned.get();
+            long next = Math.max(current, now) + interval;
+            
+            long wait = next - now - capacity;
+            if (wait > 0) return wait;
+            if (earned.compareAndSet(current, next)) return 0;
+        }
+    }
+    
+    /**
+     * Gives back a token taken by {@code tryAcquire()}, such as when an event
+     * was refused by another bucket after all.
+     */
+    public void refund () {
+        earned.addAndGet(-interval);
+    }
+}